@@ -0,0 +1,197 @@
+package info.guardianproject.panic;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gathers the acknowledgements that responders send back through the
+ * {@link Panic#EXTRA_ACK_PENDING_INTENT} of a single trigger.  Each responder
+ * app gets its own {@link PendingIntent}, which names that app and carries a
+ * random token.  The responder can only add to it, so an ack is always
+ * counted for the app whose {@code PendingIntent} sent it, and acks for other
+ * triggers or from apps that never got one are ignored.  The acks arrive at
+ * {@link AckReceiver}, which is not exported, so no other app can send to it
+ * directly.  Everything after {@link #expect(List, long)} runs on the main
+ * thread.
+ */
+final class AckCollector {
+
+    // PendingIntent.FLAG_MUTABLE, from android-31 on it is required for the fill-in extras
+    private static final int FLAG_MUTABLE = 0x02000000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final AtomicInteger REQUEST_CODES = new AtomicInteger();
+    /** the token in each {@link PendingIntent} that acks are still expected for */
+    private static final Map<Long, AckCollector> COLLECTING =
+            new ConcurrentHashMap<Long, AckCollector>();
+
+    private static final class Expected {
+        final String packageName;
+        final PendingIntent pendingIntent;
+        long receivedMillis = AckReport.NO_ACK;
+        long completedMillis = AckReport.NO_ACK;
+
+        Expected(String packageName, PendingIntent pendingIntent) {
+            this.packageName = packageName;
+            this.pendingIntent = pendingIntent;
+        }
+    }
+
+    private final Context appContext;
+    private final PanicTrigger.OnAcksCollectedListener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /** packageName to what is expected from that app, in delivery order */
+    private final Map<String, Expected> byPackageName = new LinkedHashMap<String, Expected>();
+    /** the token in each app's {@link PendingIntent} to what is expected from it */
+    private final Map<Long, Expected> byToken = new HashMap<Long, Expected>();
+    private long sentElapsedRealtime;
+    private boolean finished;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            finish(true);
+        }
+    };
+
+    AckCollector(Context context, PanicTrigger.OnAcksCollectedListener listener) {
+        Context app = context.getApplicationContext();
+        this.appContext = app == null ? context : app;
+        this.listener = listener;
+    }
+
+    /**
+     * Start listening for acks from the apps in {@code targets}, giving up
+     * after {@code timeoutMillis}.  This must be called just before the
+     * trigger is delivered, so that no ack can be missed.
+     *
+     * @return a copy of each of {@code targets}, with a
+     * {@link Panic#EXTRA_ACK_PENDING_INTENT} for its app added to its own
+     * copy of the {@link Intent}, ready to deliver
+     */
+    List<TriggerTarget> expect(List<TriggerTarget> targets, long timeoutMillis) {
+        List<TriggerTarget> withAcks = new ArrayList<TriggerTarget>(targets.size());
+        for (int i = 0, size = targets.size(); i < size; i++) {
+            TriggerTarget target = targets.get(i);
+            Expected expected = byPackageName.get(target.packageName);
+            if (expected == null) {
+                expected = newExpected(target.packageName);
+                byPackageName.put(target.packageName, expected);
+            }
+            // the plan and its Intents are never modified
+            Intent intent = new Intent(target.intent);
+            intent.putExtra(Panic.EXTRA_ACK_PENDING_INTENT, expected.pendingIntent);
+            withAcks.add(target.withIntent(intent));
+        }
+        for (Long token : byToken.keySet()) {
+            COLLECTING.put(token, this);
+        }
+        sentElapsedRealtime = SystemClock.elapsedRealtime();
+        if (byPackageName.isEmpty()) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finish(false);
+                }
+            });
+        } else {
+            handler.postDelayed(timeout, timeoutMillis);
+        }
+        return withAcks;
+    }
+
+    private Expected newExpected(String packageName) {
+        long token;
+        do {
+            token = RANDOM.nextLong();
+        } while (token == 0 || byToken.containsKey(token) || COLLECTING.containsKey(token));
+        Intent ackIntent = new Intent(appContext, AckReceiver.class);
+        ackIntent.setAction(Panic.ACTION_ACK);
+        // extras set here cannot be replaced by the responder's fill-in
+        ackIntent.putExtra(Panic.EXTRA_ACK_TOKEN, token);
+        ackIntent.putExtra(Panic.EXTRA_ACK_PACKAGE_NAME, packageName);
+        int flags = PendingIntent.FLAG_CANCEL_CURRENT;
+        if (Build.VERSION.SDK_INT >= 31) {
+            flags |= FLAG_MUTABLE;
+        }
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext,
+                REQUEST_CODES.incrementAndGet(), ackIntent, flags);
+        Expected expected = new Expected(packageName, pendingIntent);
+        byToken.put(token, expected);
+        return expected;
+    }
+
+    /**
+     * Count an ack that {@link AckReceiver} received, on the main thread.
+     */
+    static void onAck(Intent intent) {
+        AckCollector collector = COLLECTING.get(intent.getLongExtra(Panic.EXTRA_ACK_TOKEN, 0));
+        if (collector != null) {
+            collector.onReceive(intent);
+        }
+    }
+
+    private void onReceive(Intent intent) {
+        if (finished) {
+            return;
+        }
+        Expected expected = byToken.get(intent.getLongExtra(Panic.EXTRA_ACK_TOKEN, 0));
+        if (expected == null) {
+            return;
+        }
+        long time = intent.getLongExtra(Panic.EXTRA_ACK_ELAPSED_REALTIME, SystemClock.elapsedRealtime());
+        long latency = Math.max(0, time - sentElapsedRealtime);
+        switch (intent.getIntExtra(Panic.EXTRA_ACK_TYPE, 0)) {
+            case Panic.ACK_RECEIVED:
+                expected.receivedMillis = latency;
+                break;
+            case Panic.ACK_COMPLETED:
+                if (expected.receivedMillis == AckReport.NO_ACK) {
+                    expected.receivedMillis = latency; // it could not have finished without receiving it
+                }
+                expected.completedMillis = latency;
+                break;
+            default:
+                return;
+        }
+        for (Expected values : byPackageName.values()) {
+            if (values.completedMillis == AckReport.NO_ACK) {
+                return;
+            }
+        }
+        finish(false);
+    }
+
+    private void finish(boolean timedOut) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        handler.removeCallbacks(timeout);
+        for (Long token : byToken.keySet()) {
+            COLLECTING.remove(token);
+        }
+        List<AckReport.ResponderAck> results = new ArrayList<AckReport.ResponderAck>(byPackageName.size());
+        for (Expected expected : byPackageName.values()) {
+            expected.pendingIntent.cancel();
+            results.add(new AckReport.ResponderAck(expected.packageName,
+                    expected.receivedMillis, expected.completedMillis));
+        }
+        if (listener != null) {
+            listener.onAcksCollected(new AckReport(results, timedOut));
+        }
+    }
+}
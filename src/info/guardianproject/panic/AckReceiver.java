@@ -0,0 +1,24 @@
+package info.guardianproject.panic;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the acknowledgements that responders send back through the
+ * {@link Panic#EXTRA_ACK_PENDING_INTENT} of a trigger sent with
+ * {@link PanicTrigger#sendTriggerWithAcks(Context, Intent, long, PanicTrigger.OnAcksCollectedListener)}.
+ * This is not exported, it is only reached through those
+ * {@link android.app.PendingIntent}s, which run as this app.  It is declared
+ * in this library's {@code AndroidManifest.xml}, so trigger apps do not need
+ * to do anything.
+ */
+public class AckReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Panic.ACTION_ACK.equals(intent.getAction())) {
+            AckCollector.onAck(intent);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package info.guardianproject.panic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * When each responder acknowledged a trigger sent by
+ * {@link PanicTrigger#sendTriggerWithAcks(android.content.Context, android.content.Intent, long, PanicTrigger.OnAcksCollectedListener)}.
+ * All latencies are measured from when the trigger was sent, using
+ * {@link android.os.SystemClock#elapsedRealtime()} on both sides.
+ */
+public final class AckReport {
+
+    /**
+     * Returned for a latency when that acknowledgement never arrived.
+     */
+    public static final long NO_ACK = -1;
+
+    /**
+     * The acknowledgements from a single responder app.
+     */
+    public static final class ResponderAck {
+        private final String packageName;
+        private final long receivedMillis;
+        private final long completedMillis;
+
+        ResponderAck(String packageName, long receivedMillis, long completedMillis) {
+            this.packageName = packageName;
+            this.receivedMillis = receivedMillis;
+            this.completedMillis = completedMillis;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        /**
+         * @return how long until the responder said it received the trigger,
+         * or {@link #NO_ACK}
+         */
+        public long getReceivedMillis() {
+            return receivedMillis;
+        }
+
+        /**
+         * @return how long until the responder said it finished responding,
+         * or {@link #NO_ACK}
+         */
+        public long getCompletedMillis() {
+            return completedMillis;
+        }
+
+        /**
+         * @return whether the responder said it finished before the timeout
+         */
+        public boolean isCompleted() {
+            return completedMillis != NO_ACK;
+        }
+
+        @Override
+        public String toString() {
+            return packageName + ": received " + receivedMillis + "ms, completed " + completedMillis + "ms";
+        }
+    }
+
+    private final List<ResponderAck> acks;
+    private final boolean timedOut;
+
+    AckReport(List<ResponderAck> acks, boolean timedOut) {
+        this.acks = Collections.unmodifiableList(new ArrayList<ResponderAck>(acks));
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * @return one entry for every responder app the trigger was sent to,
+     * whether or not it acknowledged anything
+     */
+    public List<ResponderAck> getAcks() {
+        return acks;
+    }
+
+    /**
+     * @return the entry for {@code packageName}, or {@code null} if the
+     * trigger was not sent to it
+     */
+    public ResponderAck getAck(String packageName) {
+        for (ResponderAck ack : acks) {
+            if (ack.packageName.equals(packageName)) {
+                return ack;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the timeout passed before every responder said it
+     * finished responding
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public String toString() {
+        return acks + (timedOut ? " (timed out)" : "");
+    }
+}
@@ -0,0 +1,129 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link DispatchPlan} that was resolved ahead of time, so that firing the
+ * trigger only has to hand each prepared {@link Intent} to the system.  The
+ * plan is rebuilt in the background whenever the installed or enabled
+ * responders change.
+ * <p>
+ * The {@link Panic#EXTRA_SENDER} credentials are issued while arming, and
+ * each one can only be checked once, so a plan is only ever fired once.
+ * Firing starts a rebuild in the background, and if the trigger is fired
+ * again before that finishes, a new plan is built on the firing thread.
+ *
+ * @see PanicTrigger#arm(Context)
+ * @see PanicTrigger#fire()
+ */
+final class ArmedTrigger {
+
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+    private static volatile ArmedTrigger armed;
+
+    private final WeakReference<Context> senderReference;
+    private final Context appContext;
+    private final Intent template;
+    private final int generation;
+    private final DispatchPlan plan;
+    private final AtomicBoolean fired = new AtomicBoolean();
+
+    private ArmedTrigger(Context sender, Context appContext, Intent template) {
+        this.senderReference = new WeakReference<Context>(sender);
+        this.appContext = appContext;
+        this.template = template;
+        this.generation = GENERATION.get();
+        this.plan = DispatchPlan.resolve(appContext, template, true);
+    }
+
+    static void arm(Context context, Intent intent) {
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        ArmedTrigger fresh = new ArmedTrigger(context, appContext, new Intent(intent));
+        synchronized (ArmedTrigger.class) {
+            armed = fresh;
+        }
+    }
+
+    static void disarm() {
+        synchronized (ArmedTrigger.class) {
+            armed = null;
+        }
+    }
+
+    static boolean isArmed() {
+        return armed != null;
+    }
+
+    /**
+     * Mark any armed plan as stale and start rebuilding it in the background.
+     * If the trigger is fired before the rebuild finishes, the plan is rebuilt
+     * on the firing thread instead.
+     */
+    static void invalidate() {
+        GENERATION.incrementAndGet();
+        if (armed != null) {
+            PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the plan that is armed now, or {@code null} if
+     * {@link #disarm()} was called
+     */
+    private static ArmedTrigger refresh() {
+        ArmedTrigger current = armed;
+        if (current == null || (current.generation == GENERATION.get() && !current.fired.get())) {
+            return current;
+        }
+        Context sender = current.senderReference.get();
+        ArmedTrigger fresh = new ArmedTrigger(sender == null ? current.appContext : sender,
+                current.appContext, current.template);
+        synchronized (ArmedTrigger.class) {
+            // only replace the plan that was refreshed, disarm() might have been called
+            if (armed == current) {
+                armed = fresh;
+            }
+            return armed;
+        }
+    }
+
+    /**
+     * @return whether there was an armed plan to deliver
+     */
+    static boolean fire() {
+        long start = System.nanoTime();
+        ArmedTrigger current = armed;
+        // take the plan for this firing only, so its credentials are never sent twice
+        while (current != null
+                && (current.generation != GENERATION.get() || !current.fired.compareAndSet(false, true))) {
+            current = refresh();
+        }
+        if (current == null) {
+            return false; // never armed, or disarmed while it was being refreshed
+        }
+        Context sender = current.senderReference.get();
+        if (sender == null) {
+            Log.w(PanicTrigger.TAG, "armed Context is gone, firing from the application Context");
+            sender = current.appContext;
+        }
+        current.plan.deliver(sender);
+        PanicTrigger.metricsListener.onDispatchComplete(start, System.nanoTime());
+        // the sender credentials in the plan are used up, so issue fresh ones in the background
+        invalidate();
+        return true;
+    }
+}
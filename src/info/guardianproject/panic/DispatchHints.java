@@ -0,0 +1,77 @@
+package info.guardianproject.panic;
+
+import android.content.pm.ComponentInfo;
+import android.os.Bundle;
+
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * The {@link Panic#META_DATA_PRIORITY} and
+ * {@link Panic#META_DATA_EXPECTED_RESPONSE_MILLIS} declared on a responder's
+ * {@link Panic#ACTION_TRIGGER} components, used to order delivery.
+ */
+final class DispatchHints {
+
+    static final DispatchHints DEFAULT = new DispatchHints(0, TriggerTarget.UNKNOWN_RESPONSE_MILLIS);
+
+    /**
+     * Higher priority first, then the fastest expected response, with
+     * unknown response times last.  {@link java.util.Collections#sort(java.util.List, Comparator)}
+     * is stable, so otherwise the order is kept.
+     */
+    static final Comparator<TriggerTarget> ORDER = new Comparator<TriggerTarget>() {
+        @Override
+        public int compare(TriggerTarget a, TriggerTarget b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            long aMillis = toSortable(a.expectedResponseMillis);
+            long bMillis = toSortable(b.expectedResponseMillis);
+            return aMillis < bMillis ? -1 : (aMillis == bMillis ? 0 : 1);
+        }
+
+        private long toSortable(int expectedResponseMillis) {
+            return expectedResponseMillis == TriggerTarget.UNKNOWN_RESPONSE_MILLIS
+                    ? Long.MAX_VALUE : expectedResponseMillis;
+        }
+    };
+
+    final int priority;
+    final int expectedResponseMillis;
+
+    private DispatchHints(int priority, int expectedResponseMillis) {
+        this.priority = priority;
+        this.expectedResponseMillis = expectedResponseMillis;
+    }
+
+    /**
+     * Add the hints in {@code info}'s meta-data to {@code hints}, keyed by
+     * package name.  When a package has more than one component of the same
+     * kind, the highest priority and fastest response time are kept.
+     */
+    static void read(Map<String, DispatchHints> hints, ComponentInfo info) {
+        Bundle metaData = info.metaData;
+        if (metaData == null
+                || (!metaData.containsKey(Panic.META_DATA_PRIORITY)
+                && !metaData.containsKey(Panic.META_DATA_EXPECTED_RESPONSE_MILLIS))) {
+            return;
+        }
+        int priority = metaData.getInt(Panic.META_DATA_PRIORITY, 0);
+        int expectedResponseMillis = metaData.getInt(Panic.META_DATA_EXPECTED_RESPONSE_MILLIS,
+                TriggerTarget.UNKNOWN_RESPONSE_MILLIS);
+        if (expectedResponseMillis < 0) {
+            expectedResponseMillis = TriggerTarget.UNKNOWN_RESPONSE_MILLIS;
+        }
+        DispatchHints existing = hints.get(info.packageName);
+        if (existing != null) {
+            priority = Math.max(priority, existing.priority);
+            if (expectedResponseMillis == TriggerTarget.UNKNOWN_RESPONSE_MILLIS
+                    || (existing.expectedResponseMillis != TriggerTarget.UNKNOWN_RESPONSE_MILLIS
+                    && existing.expectedResponseMillis < expectedResponseMillis)) {
+                expectedResponseMillis = existing.expectedResponseMillis;
+            }
+        }
+        hints.put(info.packageName, new DispatchHints(priority, expectedResponseMillis));
+    }
+}
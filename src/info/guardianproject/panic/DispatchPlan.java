@@ -0,0 +1,318 @@
+package info.guardianproject.panic;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The immutable list of {@link TriggerTarget}s that a trigger will be
+ * delivered to.  Each kind of responder component is resolved exactly once,
+ * then each enabled responder gets exactly one {@link Intent} per kind of
+ * component that it has.
+ */
+final class DispatchPlan {
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SENDING = 1;
+    private static final int STATE_DELIVERED = 2;
+    private static final int STATE_FAILED = 3;
+    /** the deadline passed before it was sent, so it never will be */
+    private static final int STATE_TIMED_OUT = 4;
+
+    private static final int MAX_DELIVERY_THREADS = 4;
+    private static ExecutorService deliveryExecutor;
+
+    final List<TriggerTarget> targets;
+
+    private DispatchPlan(List<TriggerTarget> targets) {
+        this.targets = Collections.unmodifiableList(targets);
+    }
+
+    /**
+     * Build the targets from the enabled responders in the current
+     * {@link ResponderRegistry} index.  At most one query per kind of
+     * component is made, no matter how many responders are installed.
+     * Responders that {@link ResponderHealth} found to be signed by a
+     * different key are left out.  The rest are ordered by the
+     * {@link Panic#META_DATA_PRIORITY} and
+     * {@link Panic#META_DATA_EXPECTED_RESPONSE_MILLIS} they declare, except
+     * that components it found to be unreachable come after all the others,
+     * in case the check was wrong.
+     *
+     * @param context         the app's {@link Context}
+     * @param template        the trigger {@link Intent} to send, it is copied
+     *                        once and never modified
+     * @param withCredentials whether {@link android.content.BroadcastReceiver}
+     *                        and {@link android.app.Service} targets get a
+     *                        newly issued {@link Panic#EXTRA_SENDER}
+     *                        credential.  Each one is a call to the system,
+     *                        so this is only done when arming.  Otherwise
+     *                        they get the spare ones issued in the background,
+     *                        if they are ready.
+     * @return the plan, ready to {@link #deliver(Context)}
+     */
+    static DispatchPlan resolve(Context context, Intent template, boolean withCredentials) {
+        long start = System.nanoTime();
+        // take a private copy so every target is built from the same extras
+        template = new Intent(template);
+        ResponderRegistry.Snapshot snapshot = ResponderRegistry.getSnapshot(context);
+        ResponderHealth.ensureValidated(context);
+        Set<String> activities = snapshot.activities;
+        Set<String> receivers = snapshot.broadcastReceivers;
+        Set<String> services = snapshot.services;
+        Set<String> enabled = PanicTrigger.retainVerifiedResponders(
+                PanicTrigger.getEnabledResponders(context, snapshot.all), true);
+
+        List<TriggerTarget> targets = new ArrayList<TriggerTarget>(
+                activities.size() + receivers.size() + services.size());
+        List<TriggerTarget> unreachable = new ArrayList<TriggerTarget>();
+        addTargets(context, targets, unreachable, template, snapshot, activities, enabled,
+                TriggerTarget.ComponentType.ACTIVITY, false);
+        addTargets(context, targets, unreachable, template, snapshot, receivers, enabled,
+                TriggerTarget.ComponentType.BROADCAST_RECEIVER, withCredentials);
+        addTargets(context, targets, unreachable, template, snapshot, services, enabled,
+                TriggerTarget.ComponentType.SERVICE, withCredentials);
+        Collections.sort(targets, DispatchHints.ORDER);
+        Collections.sort(unreachable, DispatchHints.ORDER);
+        targets.addAll(unreachable);
+        PanicTrigger.metricsListener.onPlanResolved(start, System.nanoTime(), targets.size());
+        return new DispatchPlan(targets);
+    }
+
+    @TargetApi(16)
+    private static void addTargets(Context context, List<TriggerTarget> targets,
+                                   List<TriggerTarget> unreachable, Intent template,
+                                   ResponderRegistry.Snapshot snapshot,
+                                   Set<String> packageNames, Set<String> enabled,
+                                   TriggerTarget.ComponentType componentType,
+                                   boolean withCredentials) {
+        for (String packageName : packageNames) {
+            if (enabled.contains(packageName)) {
+                ResponderHealth.Status status = ResponderHealth.getStatus(packageName, componentType);
+                // each target gets its own copy, so nothing shared is ever setPackage()ed
+                Intent intent = new Intent(template);
+                intent.setPackage(packageName);
+                if (componentType == TriggerTarget.ComponentType.BROADCAST_RECEIVER
+                        && Build.VERSION.SDK_INT >= 16) {
+                    // run the receivers at foreground priority, without background queue delays
+                    intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+                }
+                if (status == ResponderHealth.Status.REROUTED) {
+                    ComponentName reroute = ResponderHealth.getReroute(packageName);
+                    if (reroute != null) {
+                        intent.setComponent(reroute);
+                    }
+                }
+                // Activities can check getCallingActivity() instead
+                if (componentType != TriggerTarget.ComponentType.ACTIVITY) {
+                    PendingIntent credential = withCredentials
+                            ? SenderCredentials.issue(context, packageName)
+                            : SenderCredentials.takeSpare(context, packageName);
+                    if (credential != null) {
+                        intent.putExtra(Panic.EXTRA_SENDER, credential);
+                    }
+                }
+                DispatchHints hints = snapshot.getHints(packageName, componentType);
+                TriggerTarget target = new TriggerTarget(packageName, componentType, intent,
+                        hints.priority, hints.expectedResponseMillis);
+                if (status == ResponderHealth.Status.UNREACHABLE) {
+                    Log.w(PanicTrigger.TAG, "sending last to unreachable " + componentType
+                            + " in " + packageName);
+                    unreachable.add(target);
+                } else {
+                    targets.add(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the trigger to every target in this plan, once each.  A failure
+     * to deliver to one target does not stop delivery to the rest.
+     *
+     * @param context the {@link Context} that sends the trigger
+     */
+    void deliver(Context context) {
+        for (int i = 0, size = targets.size(); i < size; i++) {
+            deliver(context, targets.get(i));
+        }
+    }
+
+    /**
+     * @return whether {@code target} was successfully handed off
+     */
+    static boolean deliver(Context context, TriggerTarget target) {
+        long start = System.nanoTime();
+        RuntimeException error = null;
+        try {
+            Intent intent = target.intent;
+            SenderCredentials.onDelivered(intent);
+            switch (target.componentType) {
+                case ACTIVITY:
+                    if (context instanceof Activity) {
+                        ((Activity) context).startActivityForResult(intent, 0);
+                    } else {
+                        Log.w(PanicTrigger.TAG, "sending trigger from Context, receivers cannot see sender packageName!");
+                        // startActivityForResult() comes from Activity, so use an
+                        // alternate method of sending that Context supports. This
+                        // currently will send an Intent which the receiver will
+                        // not be able to verify which app sent it. That requires
+                        // including an IntentSender or some other hack like that
+                        // https://dev.guardianproject.info/issues/6260
+                        context.startActivity(intent);
+                    }
+                    break;
+                case BROADCAST_RECEIVER:
+                    context.sendBroadcast(intent);
+                    break;
+                case SERVICE:
+                    context.startService(intent);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // ActivityNotFoundException when an intent-filter without the DEFAULT
+            // category makes the Activity be detected but not found,
+            // SecurityException without permission to start the Service, or
+            // IllegalStateException from startService() on android-26+ when
+            // the trigger app is in the background
+            Log.w(PanicTrigger.TAG, "could not send trigger to " + target.componentType
+                    + " in " + target.packageName, e);
+            error = e;
+        }
+        PanicTrigger.metricsListener.onDelivery(target, start, System.nanoTime(), error);
+        if (error != null) {
+            ResponderHealth.onDeliveryFailed(context, target.packageName);
+        }
+        return error == null;
+    }
+
+    /**
+     * Send the trigger to every target in this plan, with all
+     * {@link android.content.BroadcastReceiver} and {@link android.app.Service}
+     * targets sent in parallel on a small thread pool.  {@link Activity}
+     * targets are started one after the other on the main thread.  This
+     * returns once every target has been handled or once
+     * {@code timeoutMillis} has passed, whichever comes first.  Targets that
+     * were not sent to by then are never sent to, so only the ones that
+     * were already being sent can still arrive after the result is returned.
+     *
+     * @param context       the {@link Context} that sends the trigger
+     * @param timeoutMillis the overall deadline, in milliseconds
+     * @return which targets were delivered, failed, or timed out
+     */
+    DispatchResult deliverConcurrently(final Context context, long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final int size = targets.size();
+        final AtomicIntegerArray states = new AtomicIntegerArray(size);
+        final CountDownLatch latch = new CountDownLatch(size);
+
+        final List<Integer> activityIndexes = new ArrayList<Integer>();
+        ExecutorService executor = getDeliveryExecutor();
+        for (int i = 0; i < size; i++) {
+            if (targets.get(i).componentType == TriggerTarget.ComponentType.ACTIVITY) {
+                activityIndexes.add(i);
+            } else {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverAndRecord(context, index, deadline, states, latch);
+                    }
+                });
+            }
+        }
+
+        Runnable startActivities = new Runnable() {
+            @Override
+            public void run() {
+                for (int index : activityIndexes) {
+                    deliverAndRecord(context, index, deadline, states, latch);
+                }
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            startActivities.run();
+        } else if (!activityIndexes.isEmpty()) {
+            new Handler(Looper.getMainLooper()).post(startActivities);
+        }
+
+        try {
+            latch.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<TriggerTarget> delivered = new ArrayList<TriggerTarget>(size);
+        List<TriggerTarget> failed = new ArrayList<TriggerTarget>();
+        List<TriggerTarget> timedOut = new ArrayList<TriggerTarget>();
+        for (int i = 0; i < size; i++) {
+            // anything not started yet is skipped from now on, not sent late
+            states.compareAndSet(i, STATE_PENDING, STATE_TIMED_OUT);
+            switch (states.get(i)) {
+                case STATE_DELIVERED:
+                    delivered.add(targets.get(i));
+                    break;
+                case STATE_FAILED:
+                    failed.add(targets.get(i));
+                    break;
+                default:
+                    timedOut.add(targets.get(i));
+                    break;
+            }
+        }
+        return new DispatchResult(delivered, failed, timedOut);
+    }
+
+    private void deliverAndRecord(Context context, int index, long deadline,
+                                  AtomicIntegerArray states, CountDownLatch latch) {
+        if (System.nanoTime() - deadline >= 0) {
+            states.compareAndSet(index, STATE_PENDING, STATE_TIMED_OUT);
+        }
+        if (!states.compareAndSet(index, STATE_PENDING, STATE_SENDING)) {
+            // already reported as timed out
+            latch.countDown();
+            return;
+        }
+        boolean success = false;
+        try {
+            success = deliver(context, targets.get(index));
+        } finally {
+            states.compareAndSet(index, STATE_SENDING, success ? STATE_DELIVERED : STATE_FAILED);
+            latch.countDown();
+        }
+    }
+
+    private static synchronized ExecutorService getDeliveryExecutor() {
+        if (deliveryExecutor == null) {
+            int threads = Math.min(MAX_DELIVERY_THREADS, Runtime.getRuntime().availableProcessors());
+            deliveryExecutor = Executors.newFixedThreadPool(Math.max(2, threads),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "PanicTrigger-deliver");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return deliveryExecutor;
+    }
+}
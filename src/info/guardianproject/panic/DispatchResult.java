@@ -0,0 +1,62 @@
+package info.guardianproject.panic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of sending a trigger with a deadline, saying which
+ * {@link TriggerTarget}s were handed off to the system, which threw an error,
+ * and which had not finished when the deadline passed.
+ *
+ * @see PanicTrigger#sendTrigger(android.content.Context, android.content.Intent, long)
+ */
+public final class DispatchResult {
+
+    private final List<TriggerTarget> delivered;
+    private final List<TriggerTarget> failed;
+    private final List<TriggerTarget> timedOut;
+
+    DispatchResult(List<TriggerTarget> delivered, List<TriggerTarget> failed,
+                   List<TriggerTarget> timedOut) {
+        this.delivered = Collections.unmodifiableList(new ArrayList<TriggerTarget>(delivered));
+        this.failed = Collections.unmodifiableList(new ArrayList<TriggerTarget>(failed));
+        this.timedOut = Collections.unmodifiableList(new ArrayList<TriggerTarget>(timedOut));
+    }
+
+    /**
+     * @return the targets that the trigger was successfully sent to
+     */
+    public List<TriggerTarget> getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the targets that could not be sent to, for example because
+     * the {@code Activity} was not found or the {@code Service} was not
+     * allowed to start
+     */
+    public List<TriggerTarget> getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the targets that were still being sent to when the deadline
+     * passed, and the targets that were not sent to at all because it had
+     */
+    public List<TriggerTarget> getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return whether every target was successfully sent to
+     */
+    public boolean isComplete() {
+        return failed.isEmpty() && timedOut.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "delivered=" + delivered + " failed=" + failed + " timedOut=" + timedOut;
+    }
+}
@@ -0,0 +1,85 @@
+package info.guardianproject.panic;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+/**
+ * Destroys the keys that protect an app's encrypted data, so that the data
+ * is unrecoverable without having to delete all of it first.  Key files are
+ * overwritten in place with random bytes and synced to storage before they
+ * are deleted.  {@code AndroidKeyStore} entries are deleted.
+ */
+final class KeyShredder {
+
+    private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private KeyShredder() {
+    }
+
+    /**
+     * Overwrite and delete {@code file}.  It is deleted even if it could not
+     * be overwritten, since that still makes the key harder to recover, but
+     * that counts as a failure.
+     *
+     * @return whether the file was overwritten, synced and deleted
+     */
+    static boolean shredFile(File file) {
+        if (!file.isFile()) {
+            return !file.exists();
+        }
+        boolean overwritten = false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                long length = channel.size();
+                byte[] random = new byte[(int) Math.min(length, MAX_BUFFER_SIZE)];
+                new SecureRandom().nextBytes(random);
+                ByteBuffer buffer = ByteBuffer.wrap(random);
+                long position = 0;
+                while (position < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                    position += channel.write(buffer, position);
+                }
+                channel.force(true);
+                overwritten = true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(PanicResponder.TAG, "could not overwrite " + file, e);
+        }
+        boolean deleted = file.delete();
+        return overwritten && deleted;
+    }
+
+    /**
+     * @return whether the entry is gone from {@code AndroidKeyStore}
+     */
+    @TargetApi(18)
+    static boolean shredKeystoreAlias(String alias) {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+            keyStore.load(null);
+            keyStore.deleteEntry(alias);
+            return !keyStore.containsAlias(alias);
+        } catch (Exception e) {
+            Log.w(PanicResponder.TAG, "could not delete key " + alias, e);
+            return false;
+        }
+    }
+}
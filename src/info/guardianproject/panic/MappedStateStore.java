@@ -0,0 +1,365 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact {@link ResponderStateStore} kept in a small binary file, which is
+ * read in through a {@link MappedByteBuffer} once, then served entirely from
+ * memory.  Each change is appended to the end of the file as one record per
+ * {@code packageName}, holding all of its flags, so the latest record for a
+ * {@code packageName} wins.  Once the file holds many more records than
+ * there are {@code packageName}s, it is compacted into a new file.
+ * <p>
+ * The file is a header of {@link #MAGIC} and {@link #VERSION} as two
+ * {@code int}s, followed by records of: one {@code byte} of flags, an
+ * unsigned {@code short} length, then that many bytes of UTF-8
+ * {@code packageName}.  An incomplete record at the end, from being killed
+ * while writing, is cut off when the file is loaded, so that what is left of
+ * it cannot be read as part of the next record written after it.
+ * <p>
+ * The {@link android.content.SharedPreferences} that the state was moved
+ * from are left as they were.  If the file cannot be opened, they are used
+ * read-only, as the last known state, rather than losing everything.
+ */
+final class MappedStateStore implements ResponderStateStore {
+
+    static final String FILE_NAME = "info.guardianproject.panic.PanicTrigger.state";
+
+    private static final int MAGIC = 0x50414e43; // PANC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 3;
+    private static final int MAX_NAME_LENGTH = 0xffff;
+    private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+    private static MappedStateStore instance;
+    private static boolean checkedForFile;
+
+    private final File file;
+    private final Map<String, Integer> flags = new HashMap<String, Integer>();
+    private FileChannel channel;
+    private long end;
+    private int recordCount;
+
+    MappedStateStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the store, creating it from the existing
+     * {@link android.content.SharedPreferences} state if it does not exist
+     * yet.  Once created, this store is used from then on.
+     */
+    static synchronized MappedStateStore open(Context context) throws IOException {
+        if (instance != null) {
+            return instance;
+        }
+        File file = getFile(context);
+        MappedStateStore store = new MappedStateStore(file);
+        if (!file.exists()) {
+            store.migrateFrom(new SharedPreferencesStateStore(context));
+        }
+        try {
+            store.load();
+        } catch (CorruptFileException e) {
+            /*
+             * The SharedPreferences only have the state from when this file
+             * was created, which may be long out of date.  Keep the bad file
+             * for recovery, and start again so later changes are not lost too.
+             */
+            File corrupt = new File(file.getPath() + ".corrupt");
+            Log.e(PanicTrigger.TAG, "responder state was lost, " + FILE_NAME
+                    + " is corrupt, it was moved to " + corrupt, e);
+            if (!file.renameTo(corrupt)) {
+                throw new IOException("could not move aside " + file, e);
+            }
+            store = new MappedStateStore(file);
+            store.load();
+        }
+        instance = store;
+        checkedForFile = true;
+        return store;
+    }
+
+    /**
+     * @return the store if it has been set up in this app, a read-only
+     * {@link SharedPreferencesStateStore} if it has been set up but cannot
+     * be opened, or {@code null} to use the {@link SharedPreferencesStateStore}
+     */
+    static synchronized ResponderStateStore getIfExists(Context context) {
+        if (instance != null || checkedForFile) {
+            return instance;
+        }
+        if (!getFile(context).exists()) {
+            checkedForFile = true;
+            return null;
+        }
+        try {
+            return open(context);
+        } catch (IOException e) {
+            /*
+             * Writing to the SharedPreferences now would split the state
+             * between two places, so only read the state they had when the
+             * file was created.  Do not remember this failure, so the file
+             * is tried again on the next access.
+             */
+            Log.e(PanicTrigger.TAG, "could not open " + FILE_NAME
+                    + ", responder state is read-only until it can be read", e);
+            return new ReadOnlyStateStore(new SharedPreferencesStateStore(context));
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private void migrateFrom(SharedPreferencesStateStore old) throws IOException {
+        for (String packageName : old.getPackageNames(FLAG_CONNECTED)) {
+            flags.put(packageName, FLAG_CONNECTED);
+        }
+        for (String packageName : old.getPackageNames(FLAG_ENABLED)) {
+            Integer existing = flags.get(packageName);
+            flags.put(packageName, existing == null ? FLAG_ENABLED : existing | FLAG_ENABLED);
+        }
+        writeCompacted();
+        flags.clear();
+    }
+
+    void load() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            write(header, 0);
+            channel.truncate(HEADER_SIZE);
+            end = HEADER_SIZE;
+            return;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            channel.close();
+            throw new CorruptFileException(file + " is not a responder state file");
+        }
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int recordFlags = buffer.get() & 0xff;
+            int length = buffer.getShort() & MAX_NAME_LENGTH;
+            if (buffer.remaining() < length) {
+                break;
+            }
+            byte[] name = new byte[length];
+            buffer.get(name);
+            put(new String(name, "UTF-8"), recordFlags);
+            recordCount++;
+            end = buffer.position();
+        }
+        if (end < HEADER_SIZE) {
+            end = HEADER_SIZE;
+        }
+        if (end < size) {
+            channel.truncate(end);
+            channel.force(false);
+        }
+    }
+
+    private void put(String packageName, int packageFlags) {
+        if (packageFlags == 0) {
+            flags.remove(packageName);
+        } else {
+            flags.put(packageName, packageFlags);
+        }
+    }
+
+    @Override
+    public synchronized Set<String> getPackageNames(int flag) {
+        Set<String> packageNames = new HashSet<String>();
+        for (Map.Entry<String, Integer> entry : flags.entrySet()) {
+            if ((entry.getValue() & flag) != 0) {
+                packageNames.add(entry.getKey());
+            }
+        }
+        return packageNames;
+    }
+
+    @Override
+    public synchronized boolean contains(String packageName, int flag) {
+        Integer packageFlags = flags.get(packageName);
+        return packageFlags != null && (packageFlags & flag) != 0;
+    }
+
+    /**
+     * The last known state, for when the file cannot be opened.  Nothing can
+     * be changed, so that no change is written somewhere it will not be read.
+     */
+    private static final class ReadOnlyStateStore implements ResponderStateStore {
+        private final ResponderStateStore lastKnown;
+
+        ReadOnlyStateStore(ResponderStateStore lastKnown) {
+            this.lastKnown = lastKnown;
+        }
+
+        @Override
+        public Set<String> getPackageNames(int flag) {
+            return lastKnown.getPackageNames(flag);
+        }
+
+        @Override
+        public boolean contains(String packageName, int flag) {
+            return lastKnown.contains(packageName, flag);
+        }
+
+        @Override
+        public boolean update(Collection<String> packageNames, int flag, boolean set) {
+            Log.w(PanicTrigger.TAG, "not saving responder state, " + FILE_NAME + " cannot be opened");
+            return false;
+        }
+    }
+
+    /**
+     * Thrown when the file exists but is not a responder state file.
+     */
+    private static final class CorruptFileException extends IOException {
+        CorruptFileException(String message) {
+            super(message);
+        }
+    }
+
+    @Override
+    public synchronized boolean update(Collection<String> packageNames, int flag, boolean set) {
+        List<String> changed = new ArrayList<String>(packageNames.size());
+        List<Integer> changedFlags = new ArrayList<Integer>(packageNames.size());
+        List<byte[]> changedNames = new ArrayList<byte[]>(packageNames.size());
+        int size = 0;
+        try {
+            for (String packageName : new LinkedHashSet<String>(packageNames)) {
+                if (TextUtils.isEmpty(packageName)) {
+                    continue;
+                }
+                Integer existing = flags.get(packageName);
+                int oldFlags = existing == null ? 0 : existing;
+                int newFlags = set ? oldFlags | flag : oldFlags & ~flag;
+                if (newFlags == oldFlags) {
+                    continue;
+                }
+                byte[] name = encode(packageName);
+                changed.add(packageName);
+                changedFlags.add(newFlags);
+                changedNames.add(name);
+                size += RECORD_HEADER_SIZE + name.length;
+            }
+            if (changed.isEmpty()) {
+                return true;
+            }
+            ByteBuffer records = ByteBuffer.allocate(size);
+            for (int i = 0; i < changed.size(); i++) {
+                records.put(changedFlags.get(i).byteValue());
+                records.putShort((short) changedNames.get(i).length);
+                records.put(changedNames.get(i));
+            }
+            records.flip();
+            write(records, end);
+            channel.force(false);
+        } catch (IOException e) {
+            Log.w(PanicTrigger.TAG, "could not write " + FILE_NAME, e);
+            return false;
+        }
+        end += size;
+        recordCount += changed.size();
+        for (int i = 0; i < changed.size(); i++) {
+            put(changed.get(i), changedFlags.get(i));
+        }
+        if (recordCount > MIN_RECORDS_TO_COMPACT && recordCount > 2 * flags.size()) {
+            compact();
+        }
+        return true;
+    }
+
+    private static byte[] encode(String packageName) throws UnsupportedEncodingException {
+        byte[] name = packageName.getBytes("UTF-8");
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("packageName is too long: " + packageName);
+        }
+        return name;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Rewrite the file with a single record for each {@code packageName},
+     * replacing the old file only once the new one is completely written.
+     */
+    private void compact() {
+        try {
+            writeCompacted();
+        } catch (IOException e) {
+            Log.w(PanicTrigger.TAG, "could not compact " + FILE_NAME, e);
+            return;
+        }
+        try {
+            channel.close();
+            recordCount = 0;
+            end = 0;
+            load();
+        } catch (IOException e) {
+            Log.w(PanicTrigger.TAG, "could not reopen " + FILE_NAME, e);
+        }
+    }
+
+    private void writeCompacted() throws IOException {
+        int size = HEADER_SIZE;
+        List<byte[]> names = new ArrayList<byte[]>(flags.size());
+        List<Integer> values = new ArrayList<Integer>(flags.size());
+        for (Map.Entry<String, Integer> entry : flags.entrySet()) {
+            byte[] name = encode(entry.getKey());
+            names.add(name);
+            values.add(entry.getValue());
+            size += RECORD_HEADER_SIZE + name.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        for (int i = 0; i < names.size(); i++) {
+            buffer.put(values.get(i).byteValue());
+            buffer.putShort((short) names.get(i).length);
+            buffer.put(names.get(i));
+        }
+        buffer.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel tmpChannel = raf.getChannel();
+            tmpChannel.truncate(0);
+            while (buffer.hasRemaining()) {
+                tmpChannel.write(buffer);
+            }
+            tmpChannel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not rename " + tmp + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package info.guardianproject.panic;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A single process-wide {@link BroadcastReceiver} for package install,
+ * removal and change events, shared by everything in this library that
+ * caches information from {@link android.content.pm.PackageManager}.
+ */
+final class PackageChangeReceiver extends BroadcastReceiver {
+
+    interface Listener {
+        /**
+         * @param packageName the package that was added, removed or changed,
+         *                    or {@code null} if it is not known
+         */
+        void onPackageChanged(String packageName);
+    }
+
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+    private static PackageChangeReceiver instance;
+
+    private PackageChangeReceiver() {
+    }
+
+    /**
+     * Make sure the receiver is registered, then add {@code listener} if it
+     * is not already present.  This is safe to call on every access.
+     */
+    static void addListener(Context context, Listener listener) {
+        register(context);
+        if (!LISTENERS.contains(listener)) {
+            LISTENERS.add(listener);
+        }
+    }
+
+    private static synchronized void register(Context context) {
+        if (instance != null) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        instance = new PackageChangeReceiver();
+        appContext.registerReceiver(instance, filter);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        String packageName = data == null ? null : data.getSchemeSpecificPart();
+        for (Listener listener : LISTENERS) {
+            listener.onPackageChanged(packageName);
+        }
+    }
+}
@@ -8,6 +8,52 @@ public class Panic {
     public static final String ACTION_DISCONNECT = "info.guardianproject.panic.action.DISCONNECT";
     public static final String ACTION_TRIGGER = "info.guardianproject.panic.action.TRIGGER";
 
+    /**
+     * An optional {@link android.app.PendingIntent} included in a
+     * {@link #ACTION_TRIGGER} {@code Intent}, which responders use to tell
+     * the trigger app when they received the trigger and when they finished
+     * responding to it.
+     *
+     * @see PanicResponder#sendTriggerReceivedAck(android.content.Context, Intent)
+     * @see PanicResponder#sendTriggerCompletedAck(android.content.Context, Intent)
+     */
+    public static final String EXTRA_ACK_PENDING_INTENT = "info.guardianproject.panic.extra.ACK_PENDING_INTENT";
+    /**
+     * A single-use {@link android.app.PendingIntent} credential included in
+     * every armed {@link #ACTION_TRIGGER} {@code Intent} sent to a
+     * {@code BroadcastReceiver} or {@code Service}, issued by the trigger app
+     * to the one responder it is sent to.  Those responders use it to check
+     * which app sent the trigger, an {@code Activity} can check its caller.
+     *
+     * @see PanicResponder#receivedTriggerFromConnectedApp(android.content.Context, Intent)
+     */
+    public static final String EXTRA_SENDER = "info.guardianproject.panic.extra.SENDER";
+    static final String ACTION_SENDER = "info.guardianproject.panic.action.SENDER";
+    static final String EXTRA_ACK_TOKEN = "info.guardianproject.panic.extra.ACK_TOKEN";
+    static final String EXTRA_ACK_TYPE = "info.guardianproject.panic.extra.ACK_TYPE";
+    static final String EXTRA_ACK_PACKAGE_NAME = "info.guardianproject.panic.extra.ACK_PACKAGE_NAME";
+    static final String EXTRA_ACK_ELAPSED_REALTIME = "info.guardianproject.panic.extra.ACK_ELAPSED_REALTIME";
+    static final String ACTION_ACK = "info.guardianproject.panic.action.ACK";
+    static final int ACK_RECEIVED = 1;
+    static final int ACK_COMPLETED = 2;
+
+    /**
+     * An optional {@code <meta-data>} integer on a responder's
+     * {@link #ACTION_TRIGGER} component.  Components with a higher priority
+     * are sent the trigger first.  The default is {@code 0}.
+     */
+    public static final String META_DATA_PRIORITY = "info.guardianproject.panic.PRIORITY";
+
+    /**
+     * An optional {@code <meta-data>} integer on a responder's
+     * {@link #ACTION_TRIGGER} component, giving roughly how many milliseconds
+     * its response takes.  Among components of the same
+     * {@link #META_DATA_PRIORITY priority}, the fastest are sent the trigger
+     * first, and those that do not say are sent it last.
+     */
+    public static final String META_DATA_EXPECTED_RESPONSE_MILLIS =
+            "info.guardianproject.panic.EXPECTED_RESPONSE_MILLIS";
+
     public static final String PACKAGE_NAME_NONE = "NONE";
     public static final String PACKAGE_NAME_DEFAULT = "DEFAULT";
 
@@ -5,25 +5,78 @@ package info.guardianproject.panic;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.ActivityManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.ListPreference;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PanicResponder {
+    public static final String TAG = "PanicResponder";
 
     public static final String PREF_TRIGGER_PACKAGE_NAME = "panicResponderTriggerPackageName";
 
+    /**
+     * The default time after a trigger during which more triggers are
+     * ignored by {@link #shouldRespondToTrigger(Context)}.
+     */
+    public static final long DEFAULT_TRIGGER_WINDOW_MILLIS = 10000;
+
+    private static final String SHARED_PREFS = "info.guardianproject.panic.PanicResponder";
+    static final String PREF_LAST_TRIGGER_TIME = "lastTriggerElapsedRealtime";
+    static final String PREF_LAST_TRIGGER_BOOT_TIME = "lastTriggerBootTime";
+    private static final String PREF_MIGRATED_FROM_DEFAULT = "migratedFromDefaultSharedPreferences";
+    private static final String PREF_TRIGGER_SIGNING_CERTIFICATE = "triggerSigningCertificateSha256";
+    private static final long TRIGGER_TIME_NOT_LOADED = -1;
+    /**
+     * How far apart two boot times can be and still be the same boot.  They
+     * are computed from the wall clock, so they move a little when it is
+     * adjusted, while a reboot moves them by at least the uptime before it.
+     */
+    private static final long BOOT_TIME_TOLERANCE_MILLIS = 5000;
+
+    private static final AtomicLong lastTriggerTime = new AtomicLong(TRIGGER_TIME_NOT_LOADED);
+
+    /*
+     * The trigger package name is checked on every trigger, so it is kept in
+     * memory once loaded.  SharedPreferences only keeps weak references to
+     * listeners, so this must be held here.
+     */
+    private static volatile String triggerPackageName;
+    private static volatile String triggerSigningCertificate;
+    private static volatile boolean triggerPackageNameLoaded;
+    private static final SharedPreferences.OnSharedPreferenceChangeListener TRIGGER_PACKAGE_NAME_LISTENER =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    // key is null when the prefs were cleared, on newer Android versions
+                    if (key == null || PREF_TRIGGER_PACKAGE_NAME.equals(key)) {
+                        triggerPackageName = prefs.getString(PREF_TRIGGER_PACKAGE_NAME, null);
+                    }
+                    if (key == null || PREF_TRIGGER_SIGNING_CERTIFICATE.equals(key)) {
+                        triggerSigningCertificate = prefs.getString(PREF_TRIGGER_SIGNING_CERTIFICATE, null);
+                    }
+                }
+            };
+
     /**
      * Checks the provided {@link Activity} to see whether it has received a
      * {@link Panic#ACTION_CONNECT} {@code Intent}. If it has, it returns the
@@ -85,14 +138,78 @@ public class PanicResponder {
 
     /**
      * Get the {@code packageName} of the currently configured panic trigger
-     * app, or {@code null} if none.
+     * app, or {@code null} if none.  This is only read from storage the
+     * first time, after that it is served from memory.
      *
      * @param context the app's {@link Context}
      * @return the {@code packageName} or null
      */
     public static String getTriggerPackageName(Context context) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getString(PREF_TRIGGER_PACKAGE_NAME, null);
+        if (triggerPackageNameLoaded) {
+            return triggerPackageName;
+        }
+        return loadTriggerPackageName(context);
+    }
+
+    private static synchronized String loadTriggerPackageName(Context context) {
+        if (!triggerPackageNameLoaded) {
+            SharedPreferences prefs = getResponderPrefs(context);
+            migrateFromDefaultSharedPreferences(context, prefs);
+            // register first so no change can be missed between reading and listening
+            prefs.registerOnSharedPreferenceChangeListener(TRIGGER_PACKAGE_NAME_LISTENER);
+            triggerPackageName = prefs.getString(PREF_TRIGGER_PACKAGE_NAME, null);
+            triggerSigningCertificate = prefs.getString(PREF_TRIGGER_SIGNING_CERTIFICATE, null);
+            triggerPackageNameLoaded = true;
+            // have the digest ready for when the first trigger arrives
+            SigningCertificates.preload(context, triggerPackageName);
+        }
+        return triggerPackageName;
+    }
+
+    /**
+     * Check that {@code packageName}, which must be the connected trigger
+     * app, is still signed by the same key as when it was connected.  Trigger
+     * apps that were connected before pinning was added are pinned the first
+     * time they are checked.
+     */
+    static boolean verifyTriggerSigningCertificate(Context context, String packageName) {
+        getTriggerPackageName(context); // make sure the pin is loaded
+        String pinned = triggerSigningCertificate;
+        if (pinned == null) {
+            String digest = SigningCertificates.getDigest(context, packageName);
+            if (digest == null) {
+                return false;
+            }
+            triggerSigningCertificate = digest;
+            getResponderPrefs(context).edit()
+                    .putString(PREF_TRIGGER_SIGNING_CERTIFICATE, digest).apply();
+            return true;
+        }
+        if (SigningCertificates.matches(context, packageName, pinned)) {
+            return true;
+        }
+        Log.w(TAG, "Signing certificate of trigger app " + packageName + " does not match the pinned one!");
+        return false;
+    }
+
+    /**
+     * Older versions kept the trigger package name in the app's default
+     * {@link SharedPreferences}, which can be large, so move it to this
+     * library's own small file.  This is only checked once.
+     */
+    private static void migrateFromDefaultSharedPreferences(Context context, SharedPreferences prefs) {
+        if (prefs.getBoolean(PREF_MIGRATED_FROM_DEFAULT, false)) {
+            return;
+        }
+        SharedPreferences defaultPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String packageName = defaultPrefs.getString(PREF_TRIGGER_PACKAGE_NAME, null);
+        SharedPreferences.Editor editor = prefs.edit().putBoolean(PREF_MIGRATED_FROM_DEFAULT, true);
+        if (packageName != null && !prefs.contains(PREF_TRIGGER_PACKAGE_NAME)) {
+            editor.putString(PREF_TRIGGER_PACKAGE_NAME, packageName);
+        }
+        if (editor.commit() && packageName != null) {
+            defaultPrefs.edit().remove(PREF_TRIGGER_PACKAGE_NAME).apply();
+        }
     }
 
     /**
@@ -142,8 +259,8 @@ public class PanicResponder {
      */
     public static void setTriggerPackageName(Activity activity, String packageName) {
         final PackageManager pm = activity.getPackageManager();
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
-        String existingPackageName = prefs.getString(PREF_TRIGGER_PACKAGE_NAME, null);
+        String existingPackageName = getTriggerPackageName(activity);
+        SharedPreferences prefs = getResponderPrefs(activity);
         if (!TextUtils.isEmpty(existingPackageName)) {
             Intent intent = new Intent(Panic.ACTION_DISCONNECT);
             intent.setPackage(existingPackageName);
@@ -152,9 +269,24 @@ public class PanicResponder {
                 activity.startActivityForResult(intent, 0);
         }
         if (TextUtils.isEmpty(packageName) || packageName.equals(Panic.PACKAGE_NAME_DEFAULT)) {
-            prefs.edit().remove(PREF_TRIGGER_PACKAGE_NAME).apply();
+            triggerPackageName = null;
+            triggerSigningCertificate = null;
+            prefs.edit()
+                    .remove(PREF_TRIGGER_PACKAGE_NAME)
+                    .remove(PREF_TRIGGER_SIGNING_CERTIFICATE)
+                    .apply();
         } else {
-            prefs.edit().putString(PREF_TRIGGER_PACKAGE_NAME, packageName).apply();
+            // pin the key that signed the trigger app as it is connected
+            String digest = SigningCertificates.getDigest(activity, packageName);
+            triggerPackageName = packageName;
+            triggerSigningCertificate = digest;
+            SharedPreferences.Editor editor = prefs.edit().putString(PREF_TRIGGER_PACKAGE_NAME, packageName);
+            if (digest == null) {
+                editor.remove(PREF_TRIGGER_SIGNING_CERTIFICATE);
+            } else {
+                editor.putString(PREF_TRIGGER_SIGNING_CERTIFICATE, digest);
+            }
+            editor.apply();
             Intent intent = new Intent(Panic.ACTION_CONNECT);
             intent.setPackage(packageName);
             List<ResolveInfo> resInfos = pm.queryIntentActivities(intent, 0);
@@ -163,6 +295,22 @@ public class PanicResponder {
         }
     }
 
+    /**
+     * Get a list of resolved {@link Activity}s that can send panic trigger
+     * {@link Intent}s, from an index that is kept in memory.  The index is
+     * built the first time this is called, then only the packages that are
+     * added, removed or changed are resolved again, so this is much cheaper
+     * than {@link #resolveTriggerApps(PackageManager)} when called repeatedly,
+     * like every time a trigger app picker is shown.
+     *
+     * @param context the app's {@link Context}
+     * @return unmodifiable {@link List} of {@link ResolveInfo} instances for each
+     * app that responds to {@link Panic#ACTION_CONNECT} but not {@link Panic#ACTION_TRIGGER}
+     */
+    public static List<ResolveInfo> resolveTriggerApps(Context context) {
+        return TriggerAppIndex.get(context);
+    }
+
     /**
      * Get a list of resolved {@link Activity}s that can send panic trigger
      * {@link Intent}s.
@@ -203,6 +351,10 @@ public class PanicResponder {
      * this method will always return {@code false} because it is not possible
      * to get the calling {@code Activity}, as set by
      * {@link Activity#startActivityForResult(Intent, int)}
+     * <p>
+     * The sending app must also be signed by the same key as when it was
+     * connected.  That is checked against a digest kept in memory, so this
+     * is still quick.
      *
      * @param activity the {@code Activity} to get for an {@code Intent}
      * @return boolean
@@ -214,7 +366,8 @@ public class PanicResponder {
 
         String packageName = PanicUtils.getCallingPackageName(activity);
         return !TextUtils.isEmpty((packageName))
-                && TextUtils.equals(packageName, getTriggerPackageName(activity));
+                && TextUtils.equals(packageName, getTriggerPackageName(activity))
+                && verifyTriggerSigningCertificate(activity, packageName);
     }
 
     /**
@@ -234,7 +387,211 @@ public class PanicResponder {
         String packageName = PanicUtils.getCallingPackageName(activity);
         return TextUtils.isEmpty(packageName)
                 || "DEFAULT".equals(packageName)
-                || !packageName.equals(getTriggerPackageName(activity));
+                || !packageName.equals(getTriggerPackageName(activity))
+                || !verifyTriggerSigningCertificate(activity, packageName);
+    }
+
+    /**
+     * Like {@link #receivedTriggerFromConnectedApp(Activity)}, but for
+     * responders that receive the trigger in a
+     * {@link android.content.BroadcastReceiver} or
+     * {@link android.app.Service}, where there is no calling
+     * {@code Activity} to check.
+     * <p>
+     * The {@link Panic#EXTRA_SENDER} credential in {@code intent} is sent
+     * back to the app that created it, which confirms that it was issued to
+     * this app and then cancels it.  So a credential passed on by another
+     * responder is rejected, and each credential can only be checked once.
+     * This waits for the trigger app to answer, so it must not be called on
+     * the main thread.  If the trigger app's process has died since it sent
+     * the trigger, this returns {@code false}.  So does a trigger sent with
+     * {@link PanicTrigger#sendTrigger(Context)} rather than
+     * {@link PanicTrigger#arm(Context)} and {@link PanicTrigger#fire()},
+     * if no credential had been issued to this app ahead of time.
+     *
+     * @param context the app's {@link Context}
+     * @param intent  the {@code Intent} that was received
+     * @return whether {@code intent} is a trigger from the connected trigger app
+     * @see PanicResponderReceiver
+     * @see PanicResponderService
+     */
+    public static boolean receivedTriggerFromConnectedApp(Context context, Intent intent) {
+        if (!Panic.isTriggerIntent(intent)) {
+            return false;
+        }
+        String packageName = SenderCredentials.verify(context, intent);
+        return !TextUtils.isEmpty(packageName)
+                && TextUtils.equals(packageName, getTriggerPackageName(context))
+                && verifyTriggerSigningCertificate(context, packageName);
+    }
+
+    /**
+     * Like {@link #shouldUseDefaultResponseToTrigger(Activity)}, but for
+     * responders that receive the trigger in a
+     * {@link android.content.BroadcastReceiver} or
+     * {@link android.app.Service}.
+     *
+     * This uses up the credential in {@code intent}, so only call one of
+     * this and {@link #receivedTriggerFromConnectedApp(Context, Intent)}.
+     *
+     * @param context the app's {@link Context}
+     * @param intent  the {@code Intent} that was received
+     * @return whether {@code intent} is a trigger, but not from the connected trigger app
+     */
+    public static boolean shouldUseDefaultResponseToTrigger(Context context, Intent intent) {
+        return Panic.isTriggerIntent(intent) && !receivedTriggerFromConnectedApp(context, intent);
+    }
+
+    /**
+     * Tell the trigger app that sent {@code intent} that it was received, if
+     * the trigger app asked for acknowledgements.  Call this as soon as the
+     * trigger is known to come from the connected trigger app, before
+     * starting the response, so nothing is sent to an unknown app.
+     *
+     * @param context the app's {@link Context}
+     * @param intent  the {@link Panic#ACTION_TRIGGER} {@link Intent} that was received
+     * @return whether an acknowledgement was sent
+     * @see PanicTrigger#sendTriggerWithAcks(Context, Intent, long, PanicTrigger.OnAcksCollectedListener)
+     */
+    public static boolean sendTriggerReceivedAck(Context context, Intent intent) {
+        return sendTriggerAck(context, intent, Panic.ACK_RECEIVED);
+    }
+
+    /**
+     * Tell the trigger app that sent {@code intent} that the panic response
+     * has finished, if the trigger app asked for acknowledgements.
+     *
+     * @param context the app's {@link Context}
+     * @param intent  the {@link Panic#ACTION_TRIGGER} {@link Intent} that was received
+     * @return whether an acknowledgement was sent
+     * @see #sendTriggerReceivedAck(Context, Intent)
+     */
+    public static boolean sendTriggerCompletedAck(Context context, Intent intent) {
+        return sendTriggerAck(context, intent, Panic.ACK_COMPLETED);
+    }
+
+    private static boolean sendTriggerAck(Context context, Intent intent, int type) {
+        if (!Panic.isTriggerIntent(intent)) {
+            return false;
+        }
+        PendingIntent pendingIntent = intent.getParcelableExtra(Panic.EXTRA_ACK_PENDING_INTENT);
+        if (pendingIntent == null) {
+            return false;
+        }
+        Intent fillIn = new Intent();
+        fillIn.putExtra(Panic.EXTRA_ACK_TYPE, type);
+        fillIn.putExtra(Panic.EXTRA_ACK_ELAPSED_REALTIME, SystemClock.elapsedRealtime());
+        try {
+            pendingIntent.send(context, 0, fillIn);
+            return true;
+        } catch (PendingIntent.CanceledException e) {
+            // the trigger app stopped waiting
+            return false;
+        }
+    }
+
+    /**
+     * Check whether this trigger should run the panic response, using the
+     * {@link #DEFAULT_TRIGGER_WINDOW_MILLIS default window}.
+     *
+     * @param context the app's {@link Context}
+     * @return {@code true} for the first trigger, {@code false} for repeats
+     * @see #shouldRespondToTrigger(Context, long)
+     */
+    public static boolean shouldRespondToTrigger(Context context) {
+        return shouldRespondToTrigger(context, DEFAULT_TRIGGER_WINDOW_MILLIS);
+    }
+
+    /**
+     * Check whether this trigger should run the panic response, or whether
+     * it is a repeat of one that was already responded to within the last
+     * {@code windowMillis}.  Triggers often arrive more than once, from
+     * pressing the panic button repeatedly or from several trigger apps,
+     * and expensive responses like wiping data should only run once.
+     * <p>
+     * Only the first caller in the window gets {@code true}, even when
+     * called from several threads at once.  The time of the last accepted
+     * trigger is also saved, so repeats are still caught if the app's
+     * process is restarted in between.  This uses
+     * {@link SystemClock#elapsedRealtime()}, so it is not affected by
+     * changes to the clock.  The time the device booted is saved with it,
+     * so the window is reset by rebooting.  {@link #deleteAllAppData(Context, WipePlan)}
+     * deletes the saved time along with everything else, so after a wipe
+     * repeats are only caught until the app's process exits.
+     * <p>
+     * This does not check who sent the trigger.  Check that first, with
+     * {@link #receivedTriggerFromConnectedApp(Activity)} or
+     * {@link #receivedTriggerFromConnectedApp(Context, Intent)}, so that
+     * triggers from other apps cannot use up the window and hide a real one.
+     *
+     * @param context      the app's {@link Context}
+     * @param windowMillis how long after a trigger to ignore more triggers
+     * @return {@code true} for the first trigger, {@code false} for repeats
+     * @see #resetTriggerWindow(Context)
+     */
+    public static boolean shouldRespondToTrigger(Context context, long windowMillis) {
+        long now = SystemClock.elapsedRealtime();
+        while (true) {
+            long last = lastTriggerTime.get();
+            if (last == TRIGGER_TIME_NOT_LOADED) {
+                SharedPreferences prefs = getResponderPrefs(context);
+                long saved = prefs.getLong(PREF_LAST_TRIGGER_TIME, 0);
+                long savedBootTime = prefs.getLong(PREF_LAST_TRIGGER_BOOT_TIME, 0);
+                if (Math.abs(getBootTime() - savedBootTime) > BOOT_TIME_TOLERANCE_MILLIS) {
+                    saved = 0; // from before a reboot, elapsedRealtime() has started over
+                }
+                lastTriggerTime.compareAndSet(TRIGGER_TIME_NOT_LOADED, saved);
+                continue;
+            }
+            if (last > 0 && last <= now && now - last < windowMillis) {
+                return false;
+            }
+            if (lastTriggerTime.compareAndSet(last, now)) {
+                getResponderPrefs(context).edit()
+                        .putLong(PREF_LAST_TRIGGER_TIME, now)
+                        .putLong(PREF_LAST_TRIGGER_BOOT_TIME, getBootTime())
+                        .apply();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forget the last trigger, so that the next call to
+     * {@link #shouldRespondToTrigger(Context, long)} returns {@code true}.
+     *
+     * @param context the app's {@link Context}
+     */
+    public static void resetTriggerWindow(Context context) {
+        lastTriggerTime.set(0);
+        getResponderPrefs(context).edit()
+                .remove(PREF_LAST_TRIGGER_TIME)
+                .remove(PREF_LAST_TRIGGER_BOOT_TIME)
+                .apply();
+    }
+
+    /**
+     * Forget the last trigger time held in memory, so that it is read from
+     * the prefs again, like when the app's process is restarted.
+     */
+    static void reloadTriggerTime() {
+        lastTriggerTime.set(TRIGGER_TIME_NOT_LOADED);
+    }
+
+    /**
+     * @return when the device booted, by the wall clock
+     */
+    private static long getBootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * The library's own small {@link SharedPreferences} file, kept separate
+     * from the app's default one, so reading the library's state when a
+     * trigger starts the app does not have to parse all of the app's prefs.
+     */
+    static SharedPreferences getResponderPrefs(Context context) {
+        return context.getSharedPreferences(SHARED_PREFS, Context.MODE_PRIVATE);
     }
 
     /**
@@ -286,35 +643,190 @@ public class PanicResponder {
         }
     }
 
-    @TargetApi(21)
+    /**
+     * Like {@link #configTriggerAppListPreference(ListPreference, int, int)},
+     * but the name and icon of the connected trigger app are loaded in the
+     * background, then set on {@code listPreference} on the main thread.
+     * Names and icons are cached, so if they were loaded before, either by
+     * an earlier call or by {@link #preloadTriggerAppInfo(Context)}, they are
+     * shown right away.  This must be called on the main thread.
+     *
+     * @param listPreference the UI widget to display the current state
+     * @param defaultSummaryResid the string resource for the default summary
+     * @param noneSummaryResid the string resource for the summary when no app is allowed
+     */
+    @TargetApi(11)
+    public static void configTriggerAppListPreferenceAsync(final ListPreference listPreference,
+                                                           final int defaultSummaryResid,
+                                                           int noneSummaryResid) {
+        Context context = listPreference.getContext();
+        final String triggerPackageName = getTriggerPackageName(context);
+        if (TextUtils.isEmpty(triggerPackageName)
+                || triggerPackageName.equals(Panic.PACKAGE_NAME_DEFAULT)
+                || triggerPackageName.equals(Panic.PACKAGE_NAME_NONE)) {
+            configTriggerAppListPreference(listPreference, defaultSummaryResid, noneSummaryResid);
+            return;
+        }
+
+        listPreference.setValue(triggerPackageName);
+        listPreference.setDefaultValue(triggerPackageName);
+        final TriggerAppInfoCache.Entry cached = TriggerAppInfoCache.peek(triggerPackageName);
+        if (cached == null) {
+            listPreference.setSummary(defaultSummaryResid);
+        } else {
+            setTriggerAppInfo(listPreference, cached);
+        }
+
+        final PackageManager pm = context.getPackageManager();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                TriggerAppInfoCache.Entry entry;
+                try {
+                    entry = TriggerAppInfoCache.load(pm, triggerPackageName);
+                } catch (PackageManager.NameNotFoundException e) {
+                    entry = null;
+                }
+                if (entry != null && entry == cached) {
+                    return; // already showing the current name and icon
+                }
+                final TriggerAppInfoCache.Entry result = entry;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the user might have picked another app while this loaded
+                        if (!triggerPackageName.equals(listPreference.getValue())) {
+                            return;
+                        }
+                        if (result == null) {
+                            listPreference.setSummary(defaultSummaryResid);
+                            if (Build.VERSION.SDK_INT >= 11) {
+                                listPreference.setIcon(null);
+                            }
+                        } else {
+                            setTriggerAppInfo(listPreference, result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @TargetApi(11)
+    private static void setTriggerAppInfo(ListPreference listPreference,
+                                          TriggerAppInfoCache.Entry entry) {
+        listPreference.setSummary(entry.label);
+        if (Build.VERSION.SDK_INT >= 11) {
+            listPreference.setIcon(entry.newIcon());
+        }
+    }
+
+    /**
+     * Load and cache the names and icons of all the panic trigger apps found
+     * by {@link #resolveTriggerApps(Context)} in the background, so
+     * that {@link #configTriggerAppListPreferenceAsync(ListPreference, int, int)}
+     * can show them right away.  This can be called early, for example when
+     * the settings screen is being created.
+     *
+     * @param context the app's {@link Context}
+     */
+    public static void preloadTriggerAppInfo(Context context) {
+        TriggerAppInfoCache.preload(context);
+    }
+
+    /**
+     * Delete all of this app's data, then have Android clear the app's data
+     * and force close it.  The data directories are deleted using a
+     * {@code WipeEngine}, which walks each tree only once, without recursion,
+     * using all CPU cores.
+     *
+     * @param context the app's {@link Context}
+     * @see #deleteAllAppData(Context, WipePlan)
+     */
     public static void deleteAllAppData(final Context context) {
-        // SharedPreferences can hold onto values and write them out later
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        prefs.edit().clear().apply();
-
-        HashSet<File> dirs = new HashSet<File>(3);
-        dirs.add(context.getFilesDir().getParentFile()); // root of the app's /data/data
-        dirs.add(context.getCacheDir());
-        dirs.add(context.getExternalCacheDir());
-        if (Build.VERSION.SDK_INT >= 19) {
-            for (File f : context.getExternalCacheDirs()) {
-                dirs.add(f);
+        deleteAllAppData(context, new WipePlan());
+    }
+
+    /**
+     * Delete all of this app's data in the order given by {@code plan}: the
+     * registered keys are destroyed first, then the priority paths, then
+     * the bulk data directories within the time budget, then Android is
+     * asked to clear the app's data, which force closes the app.
+     * <p>
+     * The keys are always destroyed on the calling thread.  If the plan is
+     * set to {@link WipePlan#setWipeInBackground(boolean) wipe in the background},
+     * this returns as soon as the keys are gone and the rest runs on a
+     * background thread.
+     *
+     * @param context the app's {@link Context}
+     * @param plan    the keys, priority paths and time budget
+     */
+    public static void deleteAllAppData(final Context context, final WipePlan plan) {
+        for (File keyFile : plan.getKeyFiles()) {
+            if (!KeyShredder.shredFile(keyFile)) {
+                Log.w(TAG, "could not shred " + keyFile);
+                plan.getListener().onFailure(keyFile);
             }
         }
-        if (Build.VERSION.SDK_INT >= 21) {
-            for (File f : context.getExternalMediaDirs()) {
-                dirs.add(f);
+        for (String alias : plan.getKeystoreAliases()) {
+            if (!KeyShredder.shredKeystoreAlias(alias)) {
+                Log.w(TAG, "could not shred key " + alias);
+                plan.getListener().onKeystoreAliasFailure(alias);
             }
         }
-        for (File dir : dirs) {
-            try {
-                if (dir != null && dir.exists()) {
-                    deleteRecursive(dir);
+        if (plan.isWipeInBackground()) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deleteDataAndClear(context, plan);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+            }, "PanicResponder-wipe").start();
+        } else {
+            deleteDataAndClear(context, plan);
+        }
+    }
+
+    @TargetApi(21)
+    private static void deleteDataAndClear(Context context, WipePlan plan) {
+        WipeEngine engine = new WipeEngine(Runtime.getRuntime().availableProcessors(),
+                plan.getSecureOverwritePaths(), plan.getListener());
+        WipeResult result = null;
+        try {
+            // SharedPreferences can hold onto values and write them out later
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            prefs.edit().clear().apply();
+            getResponderPrefs(context).edit().clear().apply();
+            triggerPackageName = null;
+            triggerSigningCertificate = null;
+
+            // each priority path is completely gone before the next is started
+            for (File path : plan.getPriorityPaths()) {
+                WipeResult priorityResult = engine.wipe(Collections.singletonList(path));
+                result = result == null ? priorityResult : result.plus(priorityResult);
+            }
+
+            List<File> dirs = new ArrayList<File>();
+            dirs.add(context.getFilesDir().getParentFile()); // root of the app's /data/data
+            dirs.add(context.getCacheDir());
+            dirs.add(context.getExternalCacheDir());
+            if (Build.VERSION.SDK_INT >= 19) {
+                Collections.addAll(dirs, context.getExternalCacheDirs());
+            }
+            if (Build.VERSION.SDK_INT >= 21) {
+                Collections.addAll(dirs, context.getExternalMediaDirs());
             }
+            long now = SystemClock.elapsedRealtime();
+            long budget = plan.getTimeBudgetMillis();
+            long deadline = budget > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + budget;
+            WipeResult bulkResult = engine.wipe(dirs, deadline);
+            result = result == null ? bulkResult : result.plus(bulkResult);
+            Log.i(TAG, "deleteAllAppData " + result);
+            plan.getListener().onComplete(result);
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+        writeWipeSummary(plan.getSummaryFile(), result);
         try {
             // this will force close this app, so run last
             if (Build.VERSION.SDK_INT >= 19) {
@@ -328,15 +840,42 @@ public class PanicResponder {
         }
     }
 
-    private static void deleteRecursive(File f) {
-        if (f == null) {
+    /**
+     * Append a single line with the {@link WipeResult} to {@code summaryFile}
+     * and sync it, since the app will be force closed right after this.  A
+     * {@code null} result means the wipe threw an exception.
+     */
+    private static void writeWipeSummary(File summaryFile, WipeResult result) {
+        if (summaryFile == null) {
             return;
         }
-        if (f.isDirectory()) {
-            for (String child : f.list()) {
-                deleteRecursive(new File(f, child));
+        String line;
+        if (result == null) {
+            line = System.currentTimeMillis() + " failed\n";
+        } else {
+            line = System.currentTimeMillis()
+                    + " files=" + result.getFilesDeleted()
+                    + " bytes=" + result.getBytesDeleted()
+                    + " overwritten=" + result.getBytesOverwritten()
+                    + " failures=" + result.getFailures().size()
+                    + " elapsedMillis=" + result.getElapsedMillis()
+                    + " timedOut=" + result.isTimedOut() + "\n";
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(summaryFile, true);
+            out.write(line.getBytes("UTF-8"));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "could not write wipe summary to " + summaryFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored
+                }
             }
         }
-        f.delete();
     }
 }
@@ -0,0 +1,97 @@
+package info.guardianproject.panic;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A {@link BroadcastReceiver} for responding to {@link Panic#ACTION_TRIGGER}
+ * without starting an {@link android.app.Activity}, which is much faster
+ * since nothing needs to be inflated or drawn.  Add the subclass to
+ * {@code AndroidManifest.xml} like this:
+ * <pre>
+ * &lt;receiver android:name=".PanicReceiver" android:exported="true"&gt;
+ *     &lt;intent-filter&gt;
+ *         &lt;action android:name="info.guardianproject.panic.action.TRIGGER" /&gt;
+ *     &lt;/intent-filter&gt;
+ * &lt;/receiver&gt;
+ * </pre>
+ * The sender is checked with
+ * {@link PanicResponder#receivedTriggerFromConnectedApp(Context, Intent)}, then
+ * {@link #onTrigger(Context, Intent, boolean)} is run on a background
+ * thread, kept alive with {@link BroadcastReceiver#goAsync()} on android-11
+ * and newer.  Android only waits about ten seconds for that, so longer
+ * responses should be handed off to a {@link android.app.Service}, or use
+ * {@link PanicResponderService} instead.  Acknowledgements are only sent
+ * for triggers from the connected trigger app, if it asked for them.
+ * <p>
+ * <strong>NOTE</strong>: A trigger can only be verified when it carries a
+ * {@link Panic#EXTRA_SENDER} credential.  Trigger apps that use
+ * {@link PanicTrigger#arm(Context)} and {@link PanicTrigger#fire()} always
+ * include one.  {@link PanicTrigger#sendTrigger(Context)} only includes one
+ * if it was issued ahead of time, which is usually not the case for the
+ * first trigger after the trigger app starts.  Without one,
+ * {@code fromConnectedApp} is {@code false}, even for the connected trigger app.
+ */
+public abstract class PanicResponderReceiver extends BroadcastReceiver {
+
+    /**
+     * Respond to the trigger.  This is called on a background thread.
+     *
+     * @param context          the app's {@link Context}
+     * @param intent           the {@link Panic#ACTION_TRIGGER} {@link Intent}
+     * @param fromConnectedApp whether it came from the connected trigger app,
+     *                         if not, only the default response should be run
+     * @see PanicResponder#receivedTriggerFromConnectedApp(Context, Intent)
+     */
+    protected abstract void onTrigger(Context context, Intent intent, boolean fromConnectedApp);
+
+    @Override
+    public final void onReceive(Context context, final Intent intent) {
+        if (!Panic.isTriggerIntent(intent)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext() == null
+                ? context : context.getApplicationContext();
+        final Object pendingResult = goAsyncIfAvailable();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean fromConnectedApp = false;
+                try {
+                    // verify first, so nothing is sent to the PendingIntent of an unknown app
+                    fromConnectedApp = PanicResponder.receivedTriggerFromConnectedApp(appContext, intent);
+                    if (fromConnectedApp) {
+                        PanicResponder.sendTriggerReceivedAck(appContext, intent);
+                    }
+                    onTrigger(appContext, intent, fromConnectedApp);
+                } catch (RuntimeException e) {
+                    Log.e(PanicResponder.TAG, "panic response failed", e);
+                } finally {
+                    if (fromConnectedApp) {
+                        PanicResponder.sendTriggerCompletedAck(appContext, intent);
+                    }
+                    finish(pendingResult);
+                }
+            }
+        }, "PanicResponder-trigger").start();
+    }
+
+    @TargetApi(11)
+    private Object goAsyncIfAvailable() {
+        if (Build.VERSION.SDK_INT >= 11) {
+            return goAsync();
+        }
+        return null;
+    }
+
+    @TargetApi(11)
+    private static void finish(Object pendingResult) {
+        if (pendingResult != null) {
+            ((PendingResult) pendingResult).finish();
+        }
+    }
+}
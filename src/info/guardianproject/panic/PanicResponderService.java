@@ -0,0 +1,74 @@
+package info.guardianproject.panic;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * An {@link IntentService} for responding to {@link Panic#ACTION_TRIGGER},
+ * for responses that take longer than a {@link PanicResponderReceiver} is
+ * allowed to run.  Add the subclass to {@code AndroidManifest.xml} like this:
+ * <pre>
+ * &lt;service android:name=".PanicService" android:exported="true"&gt;
+ *     &lt;intent-filter&gt;
+ *         &lt;action android:name="info.guardianproject.panic.action.TRIGGER" /&gt;
+ *     &lt;/intent-filter&gt;
+ * &lt;/service&gt;
+ * </pre>
+ * The sender is checked with
+ * {@link PanicResponder#receivedTriggerFromConnectedApp(Context, Intent)}, then
+ * {@link #onTrigger(Intent, boolean)} is run on the {@link IntentService}'s
+ * worker thread, one trigger at a time.  Acknowledgements are only sent for
+ * triggers from the connected trigger app, if it asked for them.  On
+ * android-26 and newer, trigger apps in the background cannot start
+ * services, so a {@link PanicResponderReceiver} is more reliable there.
+ * <p>
+ * <strong>NOTE</strong>: like {@link PanicResponderReceiver}, a trigger
+ * without a {@link Panic#EXTRA_SENDER} credential is never from the connected
+ * app, and {@link PanicTrigger#sendTrigger(Context)} usually does not include
+ * one in the first trigger after the trigger app starts.  Trigger apps that
+ * use {@link PanicTrigger#arm(Context)} and {@link PanicTrigger#fire()}
+ * always include one.
+ */
+public abstract class PanicResponderService extends IntentService {
+
+    /**
+     * @param name names the worker thread, only useful for debugging
+     */
+    public PanicResponderService(String name) {
+        super(name);
+    }
+
+    /**
+     * Respond to the trigger.  This is called on a background thread.
+     *
+     * @param intent           the {@link Panic#ACTION_TRIGGER} {@link Intent}
+     * @param fromConnectedApp whether it came from the connected trigger app,
+     *                         if not, only the default response should be run
+     * @see PanicResponder#receivedTriggerFromConnectedApp(Context, Intent)
+     */
+    protected abstract void onTrigger(Intent intent, boolean fromConnectedApp);
+
+    @Override
+    protected final void onHandleIntent(Intent intent) {
+        if (!Panic.isTriggerIntent(intent)) {
+            return;
+        }
+        boolean fromConnectedApp = false;
+        try {
+            // verify first, so nothing is sent to the PendingIntent of an unknown app
+            fromConnectedApp = PanicResponder.receivedTriggerFromConnectedApp(this, intent);
+            if (fromConnectedApp) {
+                PanicResponder.sendTriggerReceivedAck(this, intent);
+            }
+            onTrigger(intent, fromConnectedApp);
+        } catch (RuntimeException e) {
+            Log.e(PanicResponder.TAG, "panic response failed", e);
+        } finally {
+            if (fromConnectedApp) {
+                PanicResponder.sendTriggerCompletedAck(this, intent);
+            }
+        }
+    }
+}
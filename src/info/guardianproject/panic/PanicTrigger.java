@@ -1,27 +1,146 @@
 package info.guardianproject.panic;
 
 import android.app.Activity;
-import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 public class PanicTrigger {
     public static final String TAG = "PanicTrigger";
 
-    private static final int SHARED_PREFS_MODE = Context.MODE_PRIVATE;
-    private static final String CONNECTED_SHARED_PREFS = "info.guardianproject.panic.PanicTrigger.CONNECTED";
-    private static final String ENABLED_SHARED_PREFS = "info.guardianproject.panic.PanicTrigger.ENABLED";
+    private static final String HAS_BEEN_INITED = "hasBeenInited";
+    static final String SIGNING_CERTIFICATES_SHARED_PREFS =
+            "info.guardianproject.panic.PanicTrigger.SIGNING_CERTIFICATES";
+
+    /**
+     * Receives timing information about each trigger that is sent, for
+     * finding slow responders and measuring changes between releases.  All
+     * times are from {@link System#nanoTime()}.  The methods are called on
+     * whichever thread is doing the work, so implementations must be
+     * thread-safe and should return quickly.
+     *
+     * @see #setMetricsListener(MetricsListener)
+     */
+    public interface MetricsListener {
+
+        /**
+         * A listener that does nothing, used when none is set.
+         */
+        MetricsListener NONE = new MetricsListener() {
+            @Override
+            public void onPlanResolved(long startNanos, long endNanos, int targetCount) {
+            }
+
+            @Override
+            public void onDelivery(TriggerTarget target, long startNanos, long endNanos,
+                                   Throwable error) {
+            }
+
+            @Override
+            public void onDispatchComplete(long startNanos, long endNanos) {
+            }
+
+            @Override
+            public void onResponderQuery(TriggerTarget.ComponentType componentType,
+                                         long startNanos, long endNanos, int resultCount) {
+            }
+
+            @Override
+            public void onSigningCertificateMismatch(String packageName) {
+            }
+        };
+
+        /**
+         * Called when the responders to send to have been worked out, either
+         * when sending a trigger or when {@link #arm(Context) arming} one.
+         *
+         * @param targetCount the number of deliveries that will be made
+         */
+        void onPlanResolved(long startNanos, long endNanos, int targetCount);
+
+        /**
+         * Called after each delivery to a single responder component.
+         *
+         * @param target the responder and its {@link TriggerTarget.ComponentType}
+         * @param error  why the delivery failed, or {@code null} if it succeeded
+         */
+        void onDelivery(TriggerTarget target, long startNanos, long endNanos, Throwable error);
+
+        /**
+         * Called once the whole trigger has been sent, from the time
+         * {@code sendTrigger()} or {@code fire()} was called.
+         */
+        void onDispatchComplete(long startNanos, long endNanos);
+
+        /**
+         * Called after each {@link android.content.pm.PackageManager} query
+         * for responders.  These only happen when the
+         * {@link ResponderRegistry} index is built, so counting these calls
+         * shows how well the index is being reused.
+         *
+         * @param componentType the kind of component that was queried for
+         * @param resultCount   the number of components found
+         */
+        void onResponderQuery(TriggerTarget.ComponentType componentType,
+                              long startNanos, long endNanos, int resultCount);
+
+        /**
+         * Called when a connected responder is found to be signed by a
+         * different key than when it was connected, like after it was
+         * reinstalled from a different app store.  It will not receive
+         * triggers until the user connects it again, so the app should warn
+         * the user.  This is called when the background check finds it, when
+         * enabling it is refused, and each time a trigger leaves it out.
+         *
+         * @param packageName the responder whose key changed
+         * @see #verifyResponderSigningCertificate(Context, String)
+         */
+        void onSigningCertificateMismatch(String packageName);
+    }
+
+    /**
+     * Receives the result of writing out a change to the responder settings
+     * in the background.
+     */
+    public interface OnCommitListener {
+        /**
+         * Called on the main thread once the change has been written.
+         *
+         * @param success whether the change was successfully written to storage
+         */
+        void onCommit(boolean success);
+    }
+
+    /**
+     * Receives the acknowledgements gathered by
+     * {@link #sendTriggerWithAcks(Context, Intent, long, OnAcksCollectedListener)}.
+     */
+    public interface OnAcksCollectedListener {
+        /**
+         * Called on the main thread once every responder has said it
+         * finished, or the timeout has passed.
+         *
+         * @param report the latency of each responder's acknowledgements
+         */
+        void onAcksCollected(AckReport report);
+    }
+
+    static volatile MetricsListener metricsListener = MetricsListener.NONE;
 
     /**
      * Checks whether the provided {@link Activity} was started with the action
@@ -34,7 +153,9 @@ public class PanicTrigger {
     public static boolean checkForConnectIntent(Activity activity) {
         boolean result = PanicUtils.checkForIntentWithAction(activity, Panic.ACTION_CONNECT);
         String packageName = PanicUtils.getCallingPackageName(activity);
-        addConnectedResponder(activity, packageName);
+        if (!TextUtils.isEmpty(packageName)) {
+            addConnectedResponder(activity, packageName);
+        }
         return result;
     }
 
@@ -50,7 +171,9 @@ public class PanicTrigger {
     public static boolean checkForDisconnectIntent(Activity activity) {
         boolean result = PanicUtils.checkForIntentWithAction(activity, Panic.ACTION_DISCONNECT);
         String packageName = PanicUtils.getCallingPackageName(activity);
-        removeConnectedResponder(activity, packageName);
+        if (!TextUtils.isEmpty(packageName)) {
+            removeConnectedResponder(activity, packageName);
+        }
         return result;
     }
 
@@ -63,9 +186,10 @@ public class PanicTrigger {
      * @see #removeConnectedResponder(Context, String)
      */
     public static boolean addConnectedResponder(Context context, String packageName) {
-        SharedPreferences prefs = context.getSharedPreferences(CONNECTED_SHARED_PREFS, SHARED_PREFS_MODE);
-        // present in the prefs means connected
-        return prefs.edit().putBoolean(packageName, true).commit();
+        boolean result = getStateStore(context).update(Collections.singleton(packageName),
+                ResponderStateStore.FLAG_CONNECTED, true);
+        updateSigningCertificatePins(context, Collections.singleton(packageName), true);
+        return result;
     }
 
     /**
@@ -77,22 +201,26 @@ public class PanicTrigger {
      * @see #addConnectedResponder(Context, String)
      */
     public static boolean removeConnectedResponder(Context context, String packageName) {
-        SharedPreferences prefs = context.getSharedPreferences(CONNECTED_SHARED_PREFS, SHARED_PREFS_MODE);
-        // absent from the prefs means not connected
-        return prefs.contains(packageName) && prefs.edit().remove(packageName).commit();
+        ResponderStateStore store = getStateStore(context);
+        boolean result = store.contains(packageName, ResponderStateStore.FLAG_CONNECTED)
+                && store.update(Collections.singleton(packageName), ResponderStateStore.FLAG_CONNECTED, false);
+        updateSigningCertificatePins(context, Collections.singleton(packageName), false);
+        return result;
     }
 
     /**
      * Add a {@code packageName} to the list of responders that will receive a trigger from this app.
+     * A connected responder that is now signed by a different key than when
+     * it was connected is not enabled, it must be connected again first.
      *
      * @param context     the app's {@link Context}
      * @param packageName the responder to add
      * @return whether it was successfully completed
      * @see #disableResponder(Context, String)
+     * @see #verifyResponderSigningCertificate(Context, String)
      */
     public static boolean enableResponder(Context context, String packageName) {
-        SharedPreferences prefs = context.getSharedPreferences(ENABLED_SHARED_PREFS, SHARED_PREFS_MODE);
-        return prefs.edit().putBoolean(packageName, true).commit();
+        return enableResponders(context, Collections.singleton(packageName));
     }
 
     /**
@@ -104,8 +232,303 @@ public class PanicTrigger {
      * @see #enableResponder(Context, String)
      */
     public static boolean disableResponder(Context context, String packageName) {
-        SharedPreferences prefs = context.getSharedPreferences(ENABLED_SHARED_PREFS, SHARED_PREFS_MODE);
-        return prefs.contains(packageName) && prefs.edit().remove(packageName).commit();
+        ResponderStateStore store = getStateStore(context);
+        boolean result = store.contains(packageName, ResponderStateStore.FLAG_ENABLED)
+                && store.update(Collections.singleton(packageName), ResponderStateStore.FLAG_ENABLED, false);
+        ArmedTrigger.invalidate();
+        return result;
+    }
+
+    /**
+     * Add all of {@code packageNames} to the list of connected responders,
+     * written to storage in a single transaction.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to add
+     * @return whether it was successfully completed
+     * @see #addConnectedResponder(Context, String)
+     */
+    public static boolean addConnectedResponders(Context context, Collection<String> packageNames) {
+        boolean result = getStateStore(context).update(packageNames, ResponderStateStore.FLAG_CONNECTED, true);
+        updateSigningCertificatePins(context, packageNames, true);
+        return result;
+    }
+
+    /**
+     * Like {@link #addConnectedResponders(Context, Collection)}, but written
+     * to storage on a background thread.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to add
+     * @param listener     called on the main thread when done, or {@code null}
+     */
+    public static void addConnectedResponders(Context context, Collection<String> packageNames,
+                                              OnCommitListener listener) {
+        updateInBackground(context, ResponderStateStore.FLAG_CONNECTED, packageNames, true, false, listener);
+    }
+
+    /**
+     * Remove all of {@code packageNames} from the list of connected
+     * responders, written to storage in a single transaction.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to remove
+     * @return whether it was successfully completed
+     * @see #removeConnectedResponder(Context, String)
+     */
+    public static boolean removeConnectedResponders(Context context, Collection<String> packageNames) {
+        boolean result = getStateStore(context).update(packageNames, ResponderStateStore.FLAG_CONNECTED, false);
+        updateSigningCertificatePins(context, packageNames, false);
+        return result;
+    }
+
+    /**
+     * Like {@link #removeConnectedResponders(Context, Collection)}, but
+     * written to storage on a background thread.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to remove
+     * @param listener     called on the main thread when done, or {@code null}
+     */
+    public static void removeConnectedResponders(Context context, Collection<String> packageNames,
+                                                 OnCommitListener listener) {
+        updateInBackground(context, ResponderStateStore.FLAG_CONNECTED, packageNames, false, false, listener);
+    }
+
+    /**
+     * Enable all of {@code packageNames} to receive triggers from this app,
+     * written to storage in a single transaction.  This is much faster than
+     * calling {@link #enableResponder(Context, String)} for each one.
+     * Connected responders that are now signed by a different key than when
+     * they were connected are left out, the rest are still enabled.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to enable
+     * @return whether all of them were successfully enabled
+     * @see #disableResponders(Context, Collection)
+     */
+    public static boolean enableResponders(Context context, Collection<String> packageNames) {
+        List<String> verified = retainVerifiedToEnable(context, packageNames);
+        boolean result = getStateStore(context).update(verified, ResponderStateStore.FLAG_ENABLED, true);
+        ArmedTrigger.invalidate();
+        return result && verified.size() == packageNames.size();
+    }
+
+    /**
+     * Like {@link #enableResponders(Context, Collection)}, but written to
+     * storage on a background thread.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to enable
+     * @param listener     called on the main thread when done, or {@code null}
+     */
+    public static void enableResponders(Context context, Collection<String> packageNames,
+                                        OnCommitListener listener) {
+        updateInBackground(context, ResponderStateStore.FLAG_ENABLED, packageNames, true, true, listener);
+    }
+
+    /**
+     * Stop all of {@code packageNames} from receiving triggers from this app,
+     * written to storage in a single transaction.  This is much faster than
+     * calling {@link #disableResponder(Context, String)} for each one.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to disable
+     * @return whether it was successfully completed
+     * @see #enableResponders(Context, Collection)
+     */
+    public static boolean disableResponders(Context context, Collection<String> packageNames) {
+        boolean result = getStateStore(context).update(packageNames, ResponderStateStore.FLAG_ENABLED, false);
+        ArmedTrigger.invalidate();
+        return result;
+    }
+
+    /**
+     * Like {@link #disableResponders(Context, Collection)}, but written to
+     * storage on a background thread.
+     *
+     * @param context      the app's {@link Context}
+     * @param packageNames the responders to disable
+     * @param listener     called on the main thread when done, or {@code null}
+     */
+    public static void disableResponders(Context context, Collection<String> packageNames,
+                                         OnCommitListener listener) {
+        updateInBackground(context, ResponderStateStore.FLAG_ENABLED, packageNames, false, true, listener);
+    }
+
+    private static void updateInBackground(Context context, final int flag,
+                                           Collection<String> packageNames, final boolean set,
+                                           final boolean invalidateArmed,
+                                           final OnCommitListener listener) {
+        final Context appContext = context.getApplicationContext();
+        final ResponderStateStore store = getStateStore(context);
+        // copy so the caller is free to change their Collection
+        final List<String> packageNamesCopy = new ArrayList<String>(packageNames);
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> toUpdate = packageNamesCopy;
+                if (flag == ResponderStateStore.FLAG_ENABLED && set) {
+                    toUpdate = retainVerifiedToEnable(appContext, packageNamesCopy);
+                }
+                final boolean success = store.update(toUpdate, flag, set)
+                        && toUpdate.size() == packageNamesCopy.size();
+                if (flag == ResponderStateStore.FLAG_CONNECTED) {
+                    updateSigningCertificatePins(appContext, packageNamesCopy, set);
+                }
+                if (invalidateArmed) {
+                    ArmedTrigger.invalidate();
+                }
+                if (listener != null) {
+                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onCommit(success);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Switch this app to keeping the connected and enabled responders in a
+     * compact binary file instead of {@link android.content.SharedPreferences}.
+     * The current state is moved over the first time this is called, and
+     * once moved, the binary file is always used, even if this is not called
+     * again.  Reads are then served from memory, and each change only
+     * appends a few bytes to the file.
+     * <p>
+     * This does file I/O, so it is best called once from a background thread
+     * when the app starts.
+     *
+     * @param context the app's {@link Context}
+     * @return whether the binary file is now in use
+     */
+    public static boolean useMappedStateStore(Context context) {
+        try {
+            MappedStateStore.open(context);
+            ArmedTrigger.invalidate();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "could not set up the responder state file", e);
+            return false;
+        }
+    }
+
+    /**
+     * Pin the key that signs each responder as it is connected, or forget
+     * the pin as it is disconnected.
+     */
+    private static void updateSigningCertificatePins(Context context, Collection<String> packageNames,
+                                                     boolean connect) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(
+                SIGNING_CERTIFICATES_SHARED_PREFS, Context.MODE_PRIVATE).edit();
+        for (String packageName : packageNames) {
+            if (TextUtils.isEmpty(packageName)) {
+                continue;
+            }
+            String digest = connect ? SigningCertificates.getDigest(context, packageName) : null;
+            if (digest == null) {
+                editor.remove(packageName);
+            } else {
+                editor.putString(packageName, digest);
+            }
+        }
+        editor.apply();
+        for (String packageName : packageNames) {
+            ResponderHealth.validate(context, packageName);
+        }
+    }
+
+    /**
+     * A responder that is now signed by a different key than the one that
+     * was pinned when it was connected cannot be enabled, it has to be
+     * connected again to accept the new key.
+     *
+     * @return the {@code packageNames} that can be enabled
+     */
+    private static List<String> retainVerifiedToEnable(Context context, Collection<String> packageNames) {
+        List<String> verified = new ArrayList<String>(packageNames.size());
+        for (String packageName : packageNames) {
+            if (TextUtils.isEmpty(packageName) || verifyResponderSigningCertificate(context, packageName)) {
+                verified.add(packageName);
+            } else {
+                Log.w(TAG, "not enabling " + packageName + ", its signing certificate changed");
+                metricsListener.onSigningCertificateMismatch(packageName);
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Check whether {@code packageName} is still signed by the same key as
+     * when it was connected to this app.  Responders that were connected
+     * before pinning was added are pinned the first time they are checked,
+     * just like {@link PanicResponder} does with its trigger app.  Responders
+     * that are not connected have nothing to pin, so they always pass.
+     * <p>
+     * This can ask {@link android.content.pm.PackageManager} for the
+     * responder's signing certificates, so it should not be called while
+     * sending a trigger.  Sending a trigger instead uses the result of the
+     * same check that {@link ResponderHealth} runs in the background.
+     *
+     * @param context     the app's {@link Context}
+     * @param packageName the responder to check
+     * @return {@code false} if the responder is now signed by a different key
+     */
+    public static boolean verifyResponderSigningCertificate(Context context, String packageName) {
+        SharedPreferences prefs = context.getSharedPreferences(SIGNING_CERTIFICATES_SHARED_PREFS,
+                Context.MODE_PRIVATE);
+        String pinned = prefs.getString(packageName, null);
+        if (pinned == null) {
+            if (!getStateStore(context).contains(packageName, ResponderStateStore.FLAG_CONNECTED)) {
+                return true;
+            }
+            String digest = SigningCertificates.getDigest(context, packageName);
+            if (digest == null) {
+                return false;
+            }
+            prefs.edit().putString(packageName, digest).apply();
+            return true;
+        }
+        if (SigningCertificates.matches(context, packageName, pinned)) {
+            return true;
+        }
+        Log.w(TAG, "Signing certificate of responder " + packageName + " does not match the pinned one!");
+        return false;
+    }
+
+    /**
+     * Remove every responder that the last background check found to be
+     * signed by a different key from {@code packageNames}, which must be
+     * modifiable.  This does not do any {@link android.content.pm.PackageManager}
+     * work, responders that have not been checked yet are kept.
+     *
+     * @param report whether to tell the {@link MetricsListener} about each
+     *               one that is removed
+     */
+    static Set<String> retainVerifiedResponders(Set<String> packageNames, boolean report) {
+        Iterator<String> iterator = packageNames.iterator();
+        while (iterator.hasNext()) {
+            String packageName = iterator.next();
+            if (ResponderHealth.hasChangedSigningCertificate(packageName)) {
+                iterator.remove();
+                if (report) {
+                    Log.w(TAG, "not sending to " + packageName + ", its signing certificate changed");
+                    metricsListener.onSigningCertificateMismatch(packageName);
+                }
+            }
+        }
+        return packageNames;
+    }
+
+    static ResponderStateStore getStateStore(Context context) {
+        ResponderStateStore store = MappedStateStore.getIfExists(context);
+        if (store == null) {
+            store = new SharedPreferencesStateStore(context);
+        }
+        return store;
     }
 
     /**
@@ -118,13 +541,7 @@ public class PanicTrigger {
      * @see #getResponderBroadcastReceivers(Context) to get the {@link android.content.BroadcastReceiver}s
      */
     public static Set<String> getResponderActivities(Context context) {
-        final PackageManager pm = context.getPackageManager();
-        List<ResolveInfo> activitiesList = pm.queryIntentActivities(PanicUtils.TRIGGER_INTENT, 0);
-        Set<String> activities = new HashSet<String>();
-        for (ResolveInfo resInfo : activitiesList) {
-            activities.add(resInfo.activityInfo.packageName);
-        }
-        return activities;
+        return new HashSet<String>(ResponderRegistry.getSnapshot(context).activities);
     }
 
     /**
@@ -142,13 +559,7 @@ public class PanicTrigger {
      * @see #getResponderServices(Context) to get the {@link android.app.Service}s
      */
     public static Set<String> getResponderBroadcastReceivers(Context context) {
-        final PackageManager pm = context.getPackageManager();
-        List<ResolveInfo> receiversList = pm.queryBroadcastReceivers(PanicUtils.TRIGGER_INTENT, 0);
-        Set<String> broadcastReceivers = new HashSet<String>();
-        for (ResolveInfo resInfo : receiversList) {
-            broadcastReceivers.add(resInfo.activityInfo.packageName);
-        }
-        return broadcastReceivers;
+        return new HashSet<String>(ResponderRegistry.getSnapshot(context).broadcastReceivers);
     }
 
     /**
@@ -163,13 +574,7 @@ public class PanicTrigger {
      * @see #getResponderBroadcastReceivers(Context) to get the {@link android.content.BroadcastReceiver}s
      */
     public static Set<String> getResponderServices(Context context) {
-        final PackageManager pm = context.getPackageManager();
-        List<ResolveInfo> servicesList = pm.queryIntentServices(PanicUtils.TRIGGER_INTENT, 0);
-        Set<String> services = new HashSet<String>();
-        for (ResolveInfo resInfo : servicesList) {
-            services.add(resInfo.serviceInfo.packageName);
-        }
-        return services;
+        return new HashSet<String>(ResponderRegistry.getSnapshot(context).services);
     }
 
     /**
@@ -186,16 +591,15 @@ public class PanicTrigger {
      * @see #getEnabledResponders(Context)
      */
     public static Set<String> getAllResponders(Context context) {
-        List<String> packageNames = new ArrayList<String>(getResponderActivities(context));
-        packageNames.addAll(getResponderBroadcastReceivers(context));
-        packageNames.addAll(getResponderServices(context));
-        return new HashSet<String>(packageNames);
+        return new HashSet<String>(ResponderRegistry.getSnapshot(context).all);
     }
 
     /**
      * Get the {@link Set} of {@code packageNames} of any {@link Activity}s or
      * {@link android.app.Service}s that respond to {@link Panic#ACTION_TRIGGER}
-     * and have been manually connected by the user to this app.
+     * and have been manually connected by the user to this app.  Responders
+     * that are now signed by a different key than when they were connected
+     * are left out.
      *
      * @param context the app's {@link Context}
      * @return the set of {@code packageNames} of responder apps that are
@@ -206,17 +610,10 @@ public class PanicTrigger {
      * @see #getEnabledResponders(Context)
      */
     public static Set<String> getConnectedResponders(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(CONNECTED_SHARED_PREFS, SHARED_PREFS_MODE);
-        Set<String> connectedAndInstalled = new HashSet<String>();
-        Set<String> all = getAllResponders(context);
-        // present in the connected prefs means it has been connected
-        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
-            String packageName = entry.getKey();
-            if (all.contains(packageName)) {
-                connectedAndInstalled.add(packageName);
-            }
-        }
-        return connectedAndInstalled;
+        Set<String> connectedAndInstalled = getStateStore(context)
+                .getPackageNames(ResponderStateStore.FLAG_CONNECTED);
+        connectedAndInstalled.retainAll(ResponderRegistry.getSnapshot(context).all);
+        return retainVerifiedResponders(connectedAndInstalled, false);
     }
 
     /**
@@ -233,26 +630,34 @@ public class PanicTrigger {
      * @see #getConnectedResponders(Context)
      */
     public static Set<String> getEnabledResponders(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(ENABLED_SHARED_PREFS, SHARED_PREFS_MODE);
-        Map<String, ?> allPrefs = prefs.getAll();
-        Set<String> enabledAndInstalled = new HashSet<String>();
-        Set<String> all = getAllResponders(context);
-        if (allPrefs.isEmpty()) {
-            // make sure allPrefs is not empty if the user disables all apps
-            prefs.edit().putBoolean("hasBeenInited", true).apply();
-            // the default is enabled, so write this this out
-            for (Map.Entry<String, ?> entry : allPrefs.entrySet()) {
-                enableResponder(context, entry.getKey());
-            }
-            return all;
-        } else {
-            // present in the enabled prefs means it is currently enabled
-            for (Map.Entry<String, ?> entry : allPrefs.entrySet()) {
-                String packageName = entry.getKey();
-                if (all.contains(packageName)) {
-                    enabledAndInstalled.add(packageName);
+        return getEnabledResponders(context, ResponderRegistry.getSnapshot(context).all);
+    }
+
+    /**
+     * Filter the provided {@link Set} of installed responders down to the
+     * ones that have been enabled by the user.
+     *
+     * @param context the app's {@link Context}
+     * @param all     the {@code packageNames} of all installed responders
+     * @return the set of {@code packageNames} of enabled responder apps
+     */
+    static Set<String> getEnabledResponders(Context context, Set<String> all) {
+        final ResponderStateStore store = getStateStore(context);
+        Set<String> enabledAndInstalled = store.getPackageNames(ResponderStateStore.FLAG_ENABLED);
+        if (enabledAndInstalled.isEmpty()) {
+            // make sure the store is not empty if the user disables all apps
+            PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.update(Collections.singleton(HAS_BEEN_INITED),
+                            ResponderStateStore.FLAG_ENABLED, true);
                 }
-            }
+            });
+            // the default is enabled
+            return new HashSet<String>(all);
+        } else {
+            // present in the enabled store means it is currently enabled
+            enabledAndInstalled.retainAll(all);
             return enabledAndInstalled;
         }
     }
@@ -288,9 +693,13 @@ public class PanicTrigger {
      * if you want to use a custom {@code Intent} that can include things
      * like a text message, email addresses, phone numbers, etc.
      * <p>
-     * Only the receiving {@code Activity}s will be able to verify which app sent this,
      * {@link android.app.Service}s and {@link android.content.BroadcastReceiver}s
-     * will not.
+     * can only verify which app sent this if a spare {@link Panic#EXTRA_SENDER}
+     * credential was ready for them.  Those are issued in the background by
+     * {@link ResponderHealth}, and again after each trigger, so the first
+     * trigger after this app starts goes without unless
+     * {@link ResponderHealth#validate(Context)} was called earlier.  Use
+     * {@link #arm(Context)} and {@link #fire()} so that they always can.
      * <p>
      * <strong>WARNING</strong>: If the receiving apps must be able to verify
      * which app sent this {@code Intent}, then {@code context} <b>must</b> be
@@ -306,7 +715,7 @@ public class PanicTrigger {
      *                                  {@code Intent}
      */
     public static void sendTrigger(Context context) {
-        sendTrigger(context, PanicUtils.TRIGGER_INTENT);
+        sendTrigger(context, PanicUtils.newTriggerIntent());
     }
 
     /**
@@ -316,9 +725,17 @@ public class PanicTrigger {
      * include things like a text message, email addresses, phone numbers, etc.
      * which a panic receiver app can use to send the message.
      * <p>
-     * Only the receiving {@code Activity}s will be able to verify which app sent this,
+     * {@code intent} is only read, never modified, so the same instance can
+     * be used for multiple triggers, even at the same time from different
+     * threads.  Each responder is sent its own copy.
+     * <p>
      * {@link android.app.Service}s and {@link android.content.BroadcastReceiver}s
-     * will not.
+     * can only verify which app sent this if a spare {@link Panic#EXTRA_SENDER}
+     * credential was ready for them.  Those are issued in the background by
+     * {@link ResponderHealth}, and again after each trigger, so the first
+     * trigger after this app starts goes without unless
+     * {@link ResponderHealth#validate(Context)} was called earlier.  Use
+     * {@link #arm(Context)} and {@link #fire()} so that they always can.
      * <p>
      * <strong>WARNING</strong>: If the receiving apps must be able to verify
      * which app sent this {@code Intent}, then {@code context} <b>must</b> be
@@ -338,48 +755,164 @@ public class PanicTrigger {
         if (!Panic.isTriggerIntent(intent)) {
             PanicUtils.throwNotTriggerIntent();
         }
-        Set<String> enabled = getEnabledResponders(context);
-        for (String s : enabled)
-        try {
-            // Activitys
-            for (String packageName : getResponderActivities(context)) {
-                if (enabled.contains(packageName)) {
-                    intent.setPackage(packageName);
-                    try {
-                        Activity activity = (Activity) context;
-                        activity.startActivityForResult(intent, 0);
-                    } catch (ClassCastException e) {
-                        Log.w(TAG, "sending trigger from Context, receivers cannot see sender packageName!");
-                        // startActivityForResult() comes from Activity, so use an
-                        // alternate method of sending that Context supports. This
-                        // currently will send an Intent which the receiver will
-                        // not be able to verify which app sent it. That requires
-                        // including an IntentSender or some other hack like that
-                        // https://dev.guardianproject.info/issues/6260
-                        context.startActivity(intent);
-                    }
-                }
-            }
-            // BroadcastReceivers
-            for (String packageName : getResponderBroadcastReceivers(context)) {
-                if (enabled.contains(packageName)) {
-                    intent.setPackage(packageName);
-                    context.sendBroadcast(intent);
-                }
-            }
-            //Services
-            for (String packageName : getResponderServices(context)) {
-                if (enabled.contains(packageName)) {
-                    intent.setPackage(packageName);
-                    context.startService(intent);
-                }
-            }
-        } catch (ActivityNotFoundException e) {
-            // intent-filter without DEFAULT category makes the Activity be detected but not found
-            e.printStackTrace();
-        } catch (SecurityException e) {
-            // if we don't have permission to start the Service
-            e.printStackTrace();
+        long start = System.nanoTime();
+        DispatchPlan.resolve(context, intent, false).deliver(context);
+        metricsListener.onDispatchComplete(start, System.nanoTime());
+    }
+
+    /**
+     * Send a basic {@link Panic#ACTION_TRIGGER} {@link Intent} to all
+     * configured panic receivers, in parallel, waiting at most
+     * {@code timeoutMillis}.  See {@link #sendTrigger(Context, Intent, long)}.
+     *
+     * @param context       the {@code Context} that will send the trigger {@code Intent}
+     * @param timeoutMillis how long to wait for all deliveries, in milliseconds
+     * @return which responders were delivered to, failed, or timed out
+     */
+    public static DispatchResult sendTrigger(Context context, long timeoutMillis) {
+        return sendTrigger(context, PanicUtils.newTriggerIntent(), timeoutMillis);
+    }
+
+    /**
+     * Send the {@link Intent} to all configured panic receivers like
+     * {@link #sendTrigger(Context, Intent)}, but without letting one slow
+     * or failing responder hold up the others.  The
+     * {@link android.content.BroadcastReceiver}s and
+     * {@link android.app.Service}s are sent to in parallel on a background
+     * thread pool, while the {@link Activity}s are started one after the
+     * other on the main thread.  This returns when every responder has been
+     * sent to, or when {@code timeoutMillis} has passed.  Responders that
+     * were not sent to by then are reported as timed out and are skipped.
+     * <p>
+     * If this is called from a background thread, the {@code Activity}s will
+     * be started once the main thread is free, unless the deadline has
+     * passed by then.  If this is called from the main thread, they are
+     * started before the other deliveries are waited on.
+     *
+     * @param context       the {@code Context} that will send the trigger {@code Intent},
+     *                      If this is an instance of {@code Activity}, then the receiving
+     *                      apps will be able to verify which app sent the {@code Intent}
+     * @param intent        the {@code Intent} to send to panic responders
+     * @param timeoutMillis how long to wait for all deliveries, in milliseconds
+     * @return which responders were delivered to, failed, or timed out
+     * @throws IllegalArgumentException if not a {@link Panic#ACTION_TRIGGER}
+     *                                  {@code Intent}
+     */
+    public static DispatchResult sendTrigger(Context context, Intent intent, long timeoutMillis) {
+        if (!Panic.isTriggerIntent(intent)) {
+            PanicUtils.throwNotTriggerIntent();
+        }
+        long start = System.nanoTime();
+        DispatchResult result = DispatchPlan.resolve(context, intent, false)
+                .deliverConcurrently(context, timeoutMillis);
+        metricsListener.onDispatchComplete(start, System.nanoTime());
+        return result;
+    }
+
+    /**
+     * Send the {@link Intent} to all configured panic receivers like
+     * {@link #sendTrigger(Context, Intent)}, including a
+     * {@link Panic#EXTRA_ACK_PENDING_INTENT} so that responders can report
+     * back when they received the trigger and when they finished responding,
+     * using {@link PanicResponder#sendTriggerReceivedAck(Context, Intent)} and
+     * {@link PanicResponder#sendTriggerCompletedAck(Context, Intent)}.
+     * This does not wait for the acknowledgements, they are gathered on the
+     * main thread and passed to {@code listener} once every responder has
+     * finished, or {@code timeoutMillis} has passed.  Responders built with
+     * older versions of this library will never acknowledge anything.
+     *
+     * @param context       the {@code Context} that will send the trigger {@code Intent}
+     * @param intent        the {@code Intent} to send to panic responders
+     * @param timeoutMillis how long to wait for the responders to finish
+     * @param listener      receives the {@link AckReport}
+     * @throws IllegalArgumentException if not a {@link Panic#ACTION_TRIGGER}
+     *                                  {@code Intent}
+     */
+    public static void sendTriggerWithAcks(Context context, Intent intent, long timeoutMillis,
+                                           OnAcksCollectedListener listener) {
+        if (!Panic.isTriggerIntent(intent)) {
+            PanicUtils.throwNotTriggerIntent();
+        }
+        long start = System.nanoTime();
+        AckCollector collector = new AckCollector(context, listener);
+        DispatchPlan plan = DispatchPlan.resolve(context, intent, false);
+        for (TriggerTarget target : collector.expect(plan.targets, timeoutMillis)) {
+            DispatchPlan.deliver(context, target);
         }
+        metricsListener.onDispatchComplete(start, System.nanoTime());
+    }
+
+    /**
+     * Set the {@link MetricsListener} that receives timings for every
+     * trigger sent from this process.
+     *
+     * @param listener the listener, or {@code null} to stop collecting timings
+     */
+    public static void setMetricsListener(MetricsListener listener) {
+        metricsListener = listener == null ? MetricsListener.NONE : listener;
+    }
+
+    /**
+     * Resolve all of the enabled responders now and prepare a basic
+     * {@link Panic#ACTION_TRIGGER} {@link Intent} for each of them, so that
+     * {@link #fire()} does not need to do any {@link android.content.pm.PackageManager}
+     * work.  The prepared plan is refreshed in the background whenever
+     * responders are enabled, disabled, installed, removed or updated.
+     * <p>
+     * The same sender verification rules as {@link #sendTrigger(Context)}
+     * apply: {@code context} should be the {@link Activity} that will be
+     * showing when the trigger is fired.  Only a weak reference to it is kept.
+     * Each {@link android.content.BroadcastReceiver} and
+     * {@link android.app.Service} also gets a {@link Panic#EXTRA_SENDER}
+     * credential, so that it can verify which app sent the trigger using
+     * {@link PanicResponder#receivedTriggerFromConnectedApp(Context, Intent)}.
+     *
+     * @param context the {@code Context} that will send the trigger
+     * @see #arm(Context, Intent)
+     * @see #disarm()
+     */
+    public static void arm(Context context) {
+        arm(context, PanicUtils.newTriggerIntent());
+    }
+
+    /**
+     * Like {@link #arm(Context)}, but using a custom {@link Intent} as the
+     * template for every trigger.  Changes made to {@code intent} after this
+     * call will not be included when firing.
+     *
+     * @param context the {@code Context} that will send the trigger
+     * @param intent  the {@code Intent} to send to panic responders
+     * @throws IllegalArgumentException if not a {@link Panic#ACTION_TRIGGER}
+     *                                  {@code Intent}
+     */
+    public static void arm(Context context, Intent intent) {
+        if (!Panic.isTriggerIntent(intent)) {
+            PanicUtils.throwNotTriggerIntent();
+        }
+        ArmedTrigger.arm(context, intent);
+    }
+
+    /**
+     * Throw away the plan prepared by {@link #arm(Context)}.
+     */
+    public static void disarm() {
+        ArmedTrigger.disarm();
+    }
+
+    /**
+     * @return whether {@link #arm(Context)} has prepared a plan for {@link #fire()}
+     */
+    public static boolean isArmed() {
+        return ArmedTrigger.isArmed();
+    }
+
+    /**
+     * Send the trigger prepared by {@link #arm(Context)} to all enabled
+     * responders.
+     *
+     * @return whether there was an armed trigger to send
+     */
+    public static boolean fire() {
+        return ArmedTrigger.fire();
     }
 }
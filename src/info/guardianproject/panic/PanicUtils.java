@@ -6,11 +6,38 @@ import android.content.Intent;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class PanicUtils {
 
+    /**
+     * Shared {@link Intent}s for {@link android.content.pm.PackageManager}
+     * queries only.  These must never be modified or sent, use
+     * {@link #newTriggerIntent()} to get an {@code Intent} to send.
+     */
     static final Intent TRIGGER_INTENT = new Intent(Panic.ACTION_TRIGGER);
     static final Intent CONNECT_INTENT = new Intent(Panic.ACTION_CONNECT);
 
+    /**
+     * A single background thread for library housekeeping, like writing
+     * out preferences and refreshing caches.  Work is run in order.
+     */
+    static final ExecutorService BACKGROUND_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PanicKit-background");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static Intent newTriggerIntent() {
+        return new Intent(Panic.ACTION_TRIGGER);
+    }
+
     static String getCallingPackageName(Activity activity) {
         // getCallingPackage() was unstable until android-18, use this
         ComponentName componentName = activity.getCallingActivity();
@@ -0,0 +1,282 @@
+package info.guardianproject.panic;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks ahead of time whether each responder component can actually be
+ * reached by {@link PanicTrigger#sendTrigger(Context)}, so that problems like
+ * an {@code <intent-filter>} without the {@code DEFAULT} category, a
+ * component that is not exported, or a permission this app does not hold
+ * are found in the background, not while the user is in a panic.
+ * <p>
+ * The check runs in the background the first time a trigger is planned,
+ * again for each package that is added, removed or changed, and whenever
+ * {@link #validate(Context)} is called.  Sending a trigger then sends to the
+ * components that are known to be unreachable after all the others, in case
+ * the check was wrong, and sends directly to the component of
+ * {@code Activity}s that are only missing the {@code DEFAULT} category.
+ * <p>
+ * The same check also compares each connected responder's signing key with
+ * the one pinned when it was connected, using
+ * {@link PanicTrigger#verifyResponderSigningCertificate(Context, String)}.
+ * That needs {@link PackageManager} and hashing, so it is done here rather
+ * than while sending a trigger, which only looks up the result.
+ * <p>
+ * Each responder with a {@code BroadcastReceiver} or {@code Service} is also
+ * issued a spare {@link Panic#EXTRA_SENDER} credential here, for the next
+ * trigger that is sent without arming.
+ */
+public final class ResponderHealth {
+
+    public enum Status {
+        /** not checked yet, so it will be tried */
+        UNKNOWN,
+        /** can be reached with the normal trigger {@link Intent} */
+        REACHABLE,
+        /** can only be reached by naming the component directly */
+        REROUTED,
+        /** does not look reachable by this app, so it is sent to last */
+        UNREACHABLE,
+    }
+
+    private static final class Entry {
+        final Status[] statuses = new Status[TriggerTarget.ComponentType.values().length];
+        ComponentName reroute;
+        boolean signingCertificateChanged;
+    }
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+    private static final PackageChangeReceiver.Listener PACKAGE_LISTENER =
+            new PackageChangeReceiver.Listener() {
+                @Override
+                public void onPackageChanged(String packageName) {
+                    // the old entries are kept until replaced, to tell what really changed
+                    validate(appContext, packageName);
+                }
+            };
+
+    private static volatile Context appContext;
+
+    private ResponderHealth() {
+    }
+
+    /**
+     * Check every installed responder in the background.
+     *
+     * @param context the app's {@link Context}
+     */
+    public static void validate(Context context) {
+        validate(context, null);
+    }
+
+    /**
+     * Get the result of the last check of a responder component.
+     *
+     * @param packageName   the responder
+     * @param componentType which of the responder's components
+     * @return the status, or {@link Status#UNKNOWN} if it has not been checked
+     */
+    public static Status getStatus(String packageName, TriggerTarget.ComponentType componentType) {
+        Entry entry = ENTRIES.get(packageName);
+        if (entry == null || entry.statuses[componentType.ordinal()] == null) {
+            return Status.UNKNOWN;
+        }
+        return entry.statuses[componentType.ordinal()];
+    }
+
+    /**
+     * @return the {@code Activity} to send to directly when the status is
+     * {@link Status#REROUTED}, otherwise {@code null}
+     */
+    static ComponentName getReroute(String packageName) {
+        Entry entry = ENTRIES.get(packageName);
+        return entry == null ? null : entry.reroute;
+    }
+
+    /**
+     * @return whether the last check found that {@code packageName} is
+     * signed by a different key than the one pinned when it was connected,
+     * {@code false} if it has not been checked yet
+     */
+    static boolean hasChangedSigningCertificate(String packageName) {
+        Entry entry = ENTRIES.get(packageName);
+        return entry != null && entry.signingCertificateChanged;
+    }
+
+    /**
+     * Make sure the responders have been checked, or are being checked, and
+     * that they will be checked again when packages change.  This does not
+     * wait for the check.
+     */
+    static void ensureValidated(Context context) {
+        // triggers can be planned on several threads at once, only the first starts the check
+        if (STARTED.compareAndSet(false, true)) {
+            Context app = context.getApplicationContext();
+            appContext = app == null ? context : app;
+            PackageChangeReceiver.addListener(context, PACKAGE_LISTENER);
+            validate(appContext);
+        }
+    }
+
+    /**
+     * Check {@code packageName} again after delivering to it failed, since
+     * something about it must have changed since it was last checked.
+     */
+    static void onDeliveryFailed(Context context, String packageName) {
+        validate(context, packageName);
+    }
+
+    /**
+     * Check in the background, like after a responder's signing key was
+     * pinned again.
+     *
+     * @param packageName the one responder to check, or {@code null} for all
+     */
+    static void validate(Context context, final String packageName) {
+        if (context == null) {
+            return;
+        }
+        final Context app = context.getApplicationContext() == null
+                ? context : context.getApplicationContext();
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ResponderRegistry.Snapshot snapshot = ResponderRegistry.getSnapshot(app);
+                boolean changed = false;
+                if (packageName == null) {
+                    changed = ENTRIES.keySet().retainAll(snapshot.all);
+                    for (String responder : snapshot.all) {
+                        changed |= validatePackage(app, snapshot, responder);
+                    }
+                } else {
+                    changed = validatePackage(app, snapshot, packageName);
+                }
+                if (changed) {
+                    ArmedTrigger.invalidate();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether the status of any of the package's components changed
+     * in a way that changes how triggers are delivered to it
+     */
+    private static boolean validatePackage(Context context, ResponderRegistry.Snapshot snapshot,
+                                           String packageName) {
+        if (!snapshot.all.contains(packageName)) {
+            // not a responder, or not anymore, so there is nothing to check
+            return ENTRIES.remove(packageName) != null;
+        }
+        PackageManager pm = context.getPackageManager();
+        String ourPackageName = context.getPackageName();
+        Intent intent = PanicUtils.newTriggerIntent();
+        intent.setPackage(packageName);
+        Entry entry = new Entry();
+
+        if (snapshot.activities.contains(packageName)) {
+            // startActivity() only finds Activitys with the DEFAULT category
+            List<ResolveInfo> defaults = pm.queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
+            if (findUsable(pm, ourPackageName, defaults) != null) {
+                entry.statuses[TriggerTarget.ComponentType.ACTIVITY.ordinal()] = Status.REACHABLE;
+            } else {
+                ComponentInfo usable = findUsable(pm, ourPackageName, pm.queryIntentActivities(intent, 0));
+                if (usable != null) {
+                    entry.statuses[TriggerTarget.ComponentType.ACTIVITY.ordinal()] = Status.REROUTED;
+                    entry.reroute = new ComponentName(usable.packageName, usable.name);
+                } else {
+                    entry.statuses[TriggerTarget.ComponentType.ACTIVITY.ordinal()] = Status.UNREACHABLE;
+                }
+            }
+        }
+        if (snapshot.broadcastReceivers.contains(packageName)) {
+            entry.statuses[TriggerTarget.ComponentType.BROADCAST_RECEIVER.ordinal()] =
+                    findUsable(pm, ourPackageName, pm.queryBroadcastReceivers(intent, 0)) != null
+                            ? Status.REACHABLE : Status.UNREACHABLE;
+        }
+        if (snapshot.services.contains(packageName)) {
+            entry.statuses[TriggerTarget.ComponentType.SERVICE.ordinal()] =
+                    findUsable(pm, ourPackageName, pm.queryIntentServices(intent, 0)) != null
+                            ? Status.REACHABLE : Status.UNREACHABLE;
+        }
+
+        entry.signingCertificateChanged =
+                !PanicTrigger.verifyResponderSigningCertificate(context, packageName);
+        if (snapshot.broadcastReceivers.contains(packageName)
+                || snapshot.services.contains(packageName)) {
+            SenderCredentials.prepareSpare(context, packageName);
+        }
+
+        Entry previous = ENTRIES.put(packageName, entry);
+        if (previous == null) {
+            // unchecked components were being delivered to as if reachable
+            previous = new Entry();
+        }
+        if (entry.signingCertificateChanged != previous.signingCertificateChanged) {
+            if (entry.signingCertificateChanged) {
+                PanicTrigger.metricsListener.onSigningCertificateMismatch(packageName);
+            }
+            return true;
+        }
+        for (int i = 0; i < entry.statuses.length; i++) {
+            if (normalize(previous.statuses[i]) != normalize(entry.statuses[i])) {
+                return true;
+            }
+        }
+        return previous.reroute == null ? entry.reroute != null : !previous.reroute.equals(entry.reroute);
+    }
+
+    /**
+     * @return the status as far as {@link DispatchPlan} is concerned, which
+     * delivers to unchecked components like to reachable ones
+     */
+    private static Status normalize(Status status) {
+        return status == null || status == Status.UNKNOWN ? Status.REACHABLE : status;
+    }
+
+    /**
+     * @return the first component that is enabled, exported, and does not
+     * require a permission that {@code ourPackageName} lacks, or {@code null}
+     */
+    private static ComponentInfo findUsable(PackageManager pm, String ourPackageName,
+                                            List<ResolveInfo> resolveInfos) {
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            ComponentInfo info;
+            String permission;
+            if (resolveInfo.activityInfo != null) {
+                ActivityInfo activityInfo = resolveInfo.activityInfo;
+                info = activityInfo;
+                permission = activityInfo.permission;
+            } else if (resolveInfo.serviceInfo != null) {
+                ServiceInfo serviceInfo = resolveInfo.serviceInfo;
+                info = serviceInfo;
+                permission = serviceInfo.permission;
+            } else {
+                continue;
+            }
+            if (!info.exported || !info.enabled
+                    || (info.applicationInfo != null && !info.applicationInfo.enabled)) {
+                continue;
+            }
+            if (permission != null
+                    && pm.checkPermission(permission, ourPackageName) != PackageManager.PERMISSION_GRANTED) {
+                continue;
+            }
+            return info;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A process-wide, in-memory index of the installed apps that respond to
+ * {@link Panic#ACTION_TRIGGER}.  {@link PackageManager} is only queried when
+ * the index is first needed, after a package is added, removed or changed,
+ * or after {@link #invalidate()} is called.  All of the responder lookups in
+ * {@link PanicTrigger} read from this index, including the
+ * {@link Panic#META_DATA_PRIORITY} and
+ * {@link Panic#META_DATA_EXPECTED_RESPONSE_MILLIS} that responders declare.
+ */
+public final class ResponderRegistry {
+
+    private static final Object LOCK = new Object();
+    private static final PackageChangeReceiver.Listener PACKAGE_LISTENER =
+            new PackageChangeReceiver.Listener() {
+                @Override
+                public void onPackageChanged(String packageName) {
+                    invalidate();
+                }
+            };
+
+    private static volatile Snapshot snapshot;
+    private static int generation;
+
+    private ResponderRegistry() {
+    }
+
+    /**
+     * Throw away the current index, so that it is rebuilt from
+     * {@link PackageManager} on the next lookup.  This happens automatically
+     * when packages are added, removed or changed.
+     */
+    public static void invalidate() {
+        synchronized (LOCK) {
+            generation++;
+            snapshot = null;
+        }
+        ArmedTrigger.invalidate();
+    }
+
+    /**
+     * Get the current index, building it if needed.
+     *
+     * @param context the app's {@link Context}
+     * @return an immutable snapshot of the installed responders
+     */
+    static Snapshot getSnapshot(Context context) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        PackageChangeReceiver.addListener(context, PACKAGE_LISTENER);
+        int startGeneration;
+        synchronized (LOCK) {
+            startGeneration = generation;
+        }
+        current = Snapshot.build(context.getPackageManager());
+        synchronized (LOCK) {
+            // a package change while building means this might already be stale
+            if (startGeneration == generation) {
+                snapshot = current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * The responders that were installed when this was built.  All of the
+     * {@link Set}s are unmodifiable.
+     */
+    static final class Snapshot {
+        final Set<String> activities;
+        final Set<String> broadcastReceivers;
+        final Set<String> services;
+        final Set<String> all;
+        /** only the components that declare {@link DispatchHints} are included */
+        private final Map<String, DispatchHints> activityHints;
+        private final Map<String, DispatchHints> receiverHints;
+        private final Map<String, DispatchHints> serviceHints;
+
+        private Snapshot(Set<String> activities, Set<String> broadcastReceivers,
+                         Set<String> services, Map<String, DispatchHints> activityHints,
+                         Map<String, DispatchHints> receiverHints,
+                         Map<String, DispatchHints> serviceHints) {
+            this.activities = Collections.unmodifiableSet(activities);
+            this.broadcastReceivers = Collections.unmodifiableSet(broadcastReceivers);
+            this.services = Collections.unmodifiableSet(services);
+            Set<String> all = new HashSet<String>(activities);
+            all.addAll(broadcastReceivers);
+            all.addAll(services);
+            this.all = Collections.unmodifiableSet(all);
+            this.activityHints = activityHints;
+            this.receiverHints = receiverHints;
+            this.serviceHints = serviceHints;
+        }
+
+        /**
+         * @return the hints declared by the {@code componentType} components
+         * of {@code packageName}, or {@link DispatchHints#DEFAULT}
+         */
+        DispatchHints getHints(String packageName, TriggerTarget.ComponentType componentType) {
+            Map<String, DispatchHints> hints;
+            switch (componentType) {
+                case ACTIVITY:
+                    hints = activityHints;
+                    break;
+                case BROADCAST_RECEIVER:
+                    hints = receiverHints;
+                    break;
+                default:
+                    hints = serviceHints;
+                    break;
+            }
+            DispatchHints result = hints.get(packageName);
+            return result == null ? DispatchHints.DEFAULT : result;
+        }
+
+        static Snapshot build(PackageManager pm) {
+            PanicTrigger.MetricsListener metrics = PanicTrigger.metricsListener;
+
+            long start = System.nanoTime();
+            List<ResolveInfo> activitiesList = pm.queryIntentActivities(PanicUtils.TRIGGER_INTENT,
+                    PackageManager.GET_META_DATA);
+            metrics.onResponderQuery(TriggerTarget.ComponentType.ACTIVITY,
+                    start, System.nanoTime(), activitiesList.size());
+            Set<String> activities = new HashSet<String>();
+            Map<String, DispatchHints> activityHints = new HashMap<String, DispatchHints>();
+            for (ResolveInfo resInfo : activitiesList) {
+                activities.add(resInfo.activityInfo.packageName);
+                DispatchHints.read(activityHints, resInfo.activityInfo);
+            }
+
+            start = System.nanoTime();
+            List<ResolveInfo> receiversList = pm.queryBroadcastReceivers(PanicUtils.TRIGGER_INTENT,
+                    PackageManager.GET_META_DATA);
+            metrics.onResponderQuery(TriggerTarget.ComponentType.BROADCAST_RECEIVER,
+                    start, System.nanoTime(), receiversList.size());
+            Set<String> broadcastReceivers = new HashSet<String>();
+            Map<String, DispatchHints> receiverHints = new HashMap<String, DispatchHints>();
+            for (ResolveInfo resInfo : receiversList) {
+                broadcastReceivers.add(resInfo.activityInfo.packageName);
+                DispatchHints.read(receiverHints, resInfo.activityInfo);
+            }
+
+            start = System.nanoTime();
+            List<ResolveInfo> servicesList = pm.queryIntentServices(PanicUtils.TRIGGER_INTENT,
+                    PackageManager.GET_META_DATA);
+            metrics.onResponderQuery(TriggerTarget.ComponentType.SERVICE,
+                    start, System.nanoTime(), servicesList.size());
+            Set<String> services = new HashSet<String>();
+            Map<String, DispatchHints> serviceHints = new HashMap<String, DispatchHints>();
+            for (ResolveInfo resInfo : servicesList) {
+                services.add(resInfo.serviceInfo.packageName);
+                DispatchHints.read(serviceHints, resInfo.serviceInfo);
+            }
+            return new Snapshot(activities, broadcastReceivers, services,
+                    activityHints, receiverHints, serviceHints);
+        }
+    }
+}
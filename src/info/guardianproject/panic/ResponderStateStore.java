@@ -0,0 +1,33 @@
+package info.guardianproject.panic;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Where {@link PanicTrigger} keeps track of which responders are connected
+ * and which are enabled.
+ *
+ * @see SharedPreferencesStateStore
+ * @see MappedStateStore
+ */
+interface ResponderStateStore {
+
+    int FLAG_CONNECTED = 1;
+    int FLAG_ENABLED = 1 << 1;
+
+    /**
+     * @return a new, modifiable {@link Set} of every {@code packageName}
+     * that has {@code flag} set
+     */
+    Set<String> getPackageNames(int flag);
+
+    boolean contains(String packageName, int flag);
+
+    /**
+     * Set or clear {@code flag} on all of {@code packageNames}, written to
+     * storage as a single transaction before this returns.
+     *
+     * @return whether the change was successfully written
+     */
+    boolean update(Collection<String> packageNames, int flag, boolean set);
+}
@@ -0,0 +1,352 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the steps of a panic response, like locking, hiding, notifying,
+ * wiping, or prompting to uninstall, as fast as their dependencies allow.
+ * Each action is added with a name, a priority, a timeout, and the names of
+ * the actions that must succeed before it can run.  The actions are then
+ * grouped into stages: an action's stage is one after the latest stage of
+ * the actions it depends on.  All of the actions in a stage run at the same
+ * time, each on a thread of its own, started in order of priority.  The
+ * next stage starts once every action in the current one has finished or
+ * timed out.  An action whose dependency did not succeed is skipped.
+ * <p>
+ * An action's timeout runs from when it actually starts.  At most
+ * {@link #MAX_THREADS} actions run at once, so the rest of a stage waits for
+ * one of them to finish or time out.  One that is still waiting once its
+ * timeout has passed since the start of the stage is reported as
+ * {@link ResponseReport.Status#NOT_STARTED}.  A whole stage can also be
+ * given a time budget with {@link #setStageTimeout(long)}.  Once that is
+ * used up, the actions still running in it time out, the ones still waiting
+ * are not started, and the next stage begins.
+ * <p>
+ * This is meant to be used once {@link PanicResponder#receivedTriggerFromConnectedApp(android.app.Activity)}
+ * or {@link PanicResponder#shouldUseDefaultResponseToTrigger(android.app.Activity)}
+ * says to respond.  The actions run on background threads, so anything that
+ * must touch the UI has to post to the main thread itself.  A timed out
+ * action is interrupted, but cannot be forced to stop.  Its thread is left
+ * to finish on its own, and no longer counts towards {@link #MAX_THREADS},
+ * so an action that ignores being interrupted, like one blocked on I/O,
+ * cannot hold up the actions after it.
+ */
+public final class ResponsePipeline {
+
+    /**
+     * One step of the panic response.
+     */
+    public interface Action {
+        /**
+         * Do the work of this step.  Throwing marks this action as failed,
+         * and skips the actions that depend on it.
+         *
+         * @param context the app's {@link Context}
+         */
+        void run(Context context) throws Exception;
+    }
+
+    /**
+     * The most actions that will be run at the same time.
+     */
+    public static final int MAX_THREADS = 4;
+
+    private final Map<String, Step> steps = new LinkedHashMap<String, Step>();
+    private long stageTimeoutMillis = Long.MAX_VALUE;
+
+    /**
+     * Add an action with no dependencies.
+     *
+     * @see #addAction(String, int, long, Action, String...)
+     */
+    public ResponsePipeline addAction(String name, int priority, long timeoutMillis, Action action) {
+        return addAction(name, priority, timeoutMillis, action, new String[0]);
+    }
+
+    /**
+     * Add an action to the pipeline.
+     *
+     * @param name          a unique name, used for dependencies and in the report
+     * @param priority      actions with higher priorities are started first
+     *                      within their stage
+     * @param timeoutMillis how long to wait for this action before giving up,
+     *                      use {@link Long#MAX_VALUE} to wait for as long as it takes
+     * @param action        the work to do
+     * @param dependsOn     the names of actions that must succeed first, they
+     *                      must already have been added
+     * @return this pipeline
+     * @throws IllegalArgumentException if {@code name} was already added,
+     *                                  {@code timeoutMillis} is not positive,
+     *                                  or a dependency has not been added
+     */
+    public ResponsePipeline addAction(String name, int priority, long timeoutMillis, Action action,
+                                      String... dependsOn) {
+        if (steps.containsKey(name)) {
+            throw new IllegalArgumentException("already added: " + name);
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException(name + " has a timeout of " + timeoutMillis);
+        }
+        int stage = 0;
+        for (String dependency : dependsOn) {
+            Step step = steps.get(dependency);
+            if (step == null) {
+                throw new IllegalArgumentException(name + " depends on unknown action " + dependency);
+            }
+            stage = Math.max(stage, step.stage + 1);
+        }
+        steps.put(name, new Step(name, priority, timeoutMillis, action, Arrays.asList(dependsOn), stage));
+        return this;
+    }
+
+    /**
+     * Limit how long each stage can take, on top of the timeout of each
+     * action in it.  By default there is no limit.
+     *
+     * @param timeoutMillis how long to wait for a whole stage before going
+     *                      on to the next one
+     * @return this pipeline
+     * @throws IllegalArgumentException if {@code timeoutMillis} is not positive
+     */
+    public ResponsePipeline setStageTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("stage timeout of " + timeoutMillis);
+        }
+        stageTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Run every action, stage by stage, and wait for them all to finish or
+     * time out.  This blocks, so do not call it from the main thread.
+     *
+     * @param context the app's {@link Context}
+     * @return the result and timing of every action
+     */
+    public ResponseReport run(final Context context) {
+        long start = SystemClock.elapsedRealtime();
+        List<List<Step>> stages = new ArrayList<List<Step>>();
+        for (Step step : steps.values()) {
+            while (stages.size() <= step.stage) {
+                stages.add(new ArrayList<Step>());
+            }
+            stages.get(step.stage).add(step);
+        }
+
+        Map<String, ResponseReport.Status> statuses = new HashMap<String, ResponseReport.Status>();
+        List<ResponseReport.ActionResult> results = new ArrayList<ResponseReport.ActionResult>();
+        for (List<Step> stage : stages) {
+            Collections.sort(stage, new Comparator<Step>() {
+                @Override
+                public int compare(Step lhs, Step rhs) {
+                    return rhs.priority < lhs.priority ? -1 : (rhs.priority == lhs.priority ? 0 : 1);
+                }
+            });
+            runStage(context, stage, start, stageTimeoutMillis, statuses, results);
+        }
+        return new ResponseReport(results, SystemClock.elapsedRealtime() - start);
+    }
+
+    private static void runStage(Context context, List<Step> stage, long pipelineStart,
+                                 long stageTimeoutMillis, Map<String, ResponseReport.Status> statuses,
+                                 List<ResponseReport.ActionResult> results) {
+        long stageStart = SystemClock.elapsedRealtime();
+        long stageDeadline = getDeadline(stageStart, stageTimeoutMillis);
+        // notified whenever an action finishes
+        final Object monitor = new Object();
+        LinkedList<Running> waiting = new LinkedList<Running>();
+        List<Running> running = new ArrayList<Running>(Math.min(MAX_THREADS, stage.size()));
+        ResponseReport.ActionResult[] stageResults = new ResponseReport.ActionResult[stage.size()];
+        for (int i = 0; i < stage.size(); i++) {
+            Step step = stage.get(i);
+            if (dependenciesSucceeded(step, statuses)) {
+                waiting.add(new Running(i, step));
+            } else {
+                stageResults[i] = new ResponseReport.ActionResult(step.name, step.stage,
+                        ResponseReport.Status.SKIPPED, stageStart - pipelineStart, 0, null);
+            }
+        }
+
+        try {
+            synchronized (monitor) {
+                while (!waiting.isEmpty() || !running.isEmpty()) {
+                    long now = SystemClock.elapsedRealtime();
+                    while (running.size() < MAX_THREADS && !waiting.isEmpty()
+                            && now < stageDeadline) {
+                        Running next = waiting.removeFirst();
+                        next.start(context, monitor, now);
+                        running.add(next);
+                    }
+
+                    long nextDeadline = Long.MAX_VALUE;
+                    Iterator<Running> iterator = running.iterator();
+                    while (iterator.hasNext()) {
+                        Running action = iterator.next();
+                        Step step = action.step;
+                        if (action.finished) {
+                            ResponseReport.Status status = action.error == null
+                                    ? ResponseReport.Status.SUCCEEDED : ResponseReport.Status.FAILED;
+                            stageResults[action.index] = new ResponseReport.ActionResult(step.name,
+                                    step.stage, status, action.started - pipelineStart,
+                                    action.end - action.started, action.error);
+                            iterator.remove();
+                            continue;
+                        }
+                        long deadline = Math.min(stageDeadline,
+                                getDeadline(action.started, step.timeoutMillis));
+                        if (now >= deadline) {
+                            stageResults[action.index] = timedOut(action, now, pipelineStart);
+                            iterator.remove();
+                        } else {
+                            nextDeadline = Math.min(nextDeadline, deadline);
+                        }
+                    }
+                    iterator = waiting.iterator();
+                    while (iterator.hasNext()) {
+                        Running action = iterator.next();
+                        long deadline = Math.min(stageDeadline,
+                                getDeadline(stageStart, action.step.timeoutMillis));
+                        if (now >= deadline) {
+                            stageResults[action.index] = notStarted(action.step, stageStart, now,
+                                    pipelineStart);
+                            iterator.remove();
+                        } else {
+                            nextDeadline = Math.min(nextDeadline, deadline);
+                        }
+                    }
+
+                    if (running.size() < MAX_THREADS && !waiting.isEmpty()) {
+                        continue; // a thread was freed up, so start the next action
+                    }
+                    if (!running.isEmpty()) {
+                        monitor.wait(Math.max(1, nextDeadline - SystemClock.elapsedRealtime()));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            long now = SystemClock.elapsedRealtime();
+            for (Running action : running) {
+                stageResults[action.index] = timedOut(action, now, pipelineStart);
+            }
+            for (Running action : waiting) {
+                stageResults[action.index] = notStarted(action.step, stageStart, now, pipelineStart);
+            }
+        }
+
+        for (ResponseReport.ActionResult result : stageResults) {
+            statuses.put(result.getName(), result.getStatus());
+            results.add(result);
+        }
+    }
+
+    /**
+     * @return when an action that started at {@code start} times out, or
+     * {@link Long#MAX_VALUE} if that is too far away to represent
+     */
+    private static long getDeadline(long start, long timeoutMillis) {
+        return timeoutMillis > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + timeoutMillis;
+    }
+
+    /**
+     * Give up on {@code action}, leaving its thread to finish on its own.
+     */
+    private static ResponseReport.ActionResult timedOut(Running action, long now, long pipelineStart) {
+        action.thread.interrupt();
+        return new ResponseReport.ActionResult(action.step.name, action.step.stage,
+                ResponseReport.Status.TIMED_OUT, action.started - pipelineStart,
+                now - action.started, null);
+    }
+
+    private static ResponseReport.ActionResult notStarted(Step step, long stageStart, long now,
+                                                          long pipelineStart) {
+        return new ResponseReport.ActionResult(step.name, step.stage,
+                ResponseReport.Status.NOT_STARTED, stageStart - pipelineStart, now - stageStart, null);
+    }
+
+    private static boolean dependenciesSucceeded(Step step, Map<String, ResponseReport.Status> statuses) {
+        for (String dependency : step.dependsOn) {
+            if (statuses.get(dependency) != ResponseReport.Status.SUCCEEDED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An action that was submitted to run in the current stage.
+     */
+    private static final class Running {
+        final int index;
+        final Step step;
+        long started;
+        Thread thread;
+        /** guarded by the stage's monitor */
+        long end;
+        Throwable error;
+        boolean finished;
+
+        Running(int index, Step step) {
+            this.index = index;
+            this.step = step;
+        }
+
+        /**
+         * Run the action on a new daemon thread, rather than on a pool, so
+         * that one that never returns does not use up a pooled thread.
+         */
+        void start(final Context context, final Object monitor, long now) {
+            started = now;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable throwable = null;
+                    try {
+                        step.action.run(context);
+                    } catch (Throwable e) {
+                        throwable = e;
+                    }
+                    synchronized (monitor) {
+                        end = SystemClock.elapsedRealtime();
+                        error = throwable;
+                        finished = true;
+                        monitor.notifyAll();
+                    }
+                }
+            }, "PanicResponder-response-" + step.name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static final class Step {
+        final String name;
+        final int priority;
+        final long timeoutMillis;
+        final Action action;
+        final List<String> dependsOn;
+        final int stage;
+
+        Step(String name, int priority, long timeoutMillis, Action action, List<String> dependsOn,
+             int stage) {
+            this.name = name;
+            this.priority = priority;
+            this.timeoutMillis = timeoutMillis;
+            this.action = action;
+            this.dependsOn = dependsOn;
+            this.stage = stage;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package info.guardianproject.panic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened to each action when a {@link ResponsePipeline} was run.
+ */
+public final class ResponseReport {
+
+    /**
+     * How an action finished.
+     */
+    public enum Status {
+        /** the action ran to completion */
+        SUCCEEDED,
+        /** the action threw an exception */
+        FAILED,
+        /** the action did not finish within its timeout */
+        TIMED_OUT,
+        /** the action was not run because an action it depends on did not succeed */
+        SKIPPED,
+        /**
+         * the action waited for a free thread for longer than its timeout,
+         * or its stage ran out of time first, so it was never run
+         */
+        NOT_STARTED,
+    }
+
+    /**
+     * The timing and result of a single action.
+     */
+    public static final class ActionResult {
+        private final String name;
+        private final int stage;
+        private final Status status;
+        private final long startMillis;
+        private final long durationMillis;
+        private final Throwable error;
+
+        ActionResult(String name, int stage, Status status, long startMillis, long durationMillis,
+                     Throwable error) {
+            this.name = name;
+            this.stage = stage;
+            this.status = status;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+            this.error = error;
+        }
+
+        /**
+         * @return the name the action was added with
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the stage the action ran in, starting from 0, actions in
+         * the same stage ran at the same time
+         */
+        public int getStage() {
+            return stage;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return when the action started, relative to the start of the pipeline,
+         * or when its stage started if it never ran
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return how long the action ran for, or waited for before timing out,
+         * or waited for a thread if it was {@link Status#NOT_STARTED}
+         */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return what the action threw, or {@code null}
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + status + " at " + startMillis + "ms for " + durationMillis + "ms";
+        }
+    }
+
+    private final List<ActionResult> results;
+    private final long elapsedMillis;
+
+    ResponseReport(List<ActionResult> results, long elapsedMillis) {
+        this.results = Collections.unmodifiableList(new ArrayList<ActionResult>(results));
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return the result of every action, in the order they were started
+     */
+    public List<ActionResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the result of the named action, or {@code null} if there is none
+     */
+    public ActionResult getResult(String name) {
+        for (ActionResult result : results) {
+            if (result.name.equals(name)) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how long the whole pipeline took
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return whether every action succeeded
+     */
+    public boolean isSuccessful() {
+        for (ActionResult result : results) {
+            if (result.status != Status.SUCCEEDED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return results + " in " + elapsedMillis + "ms";
+    }
+}
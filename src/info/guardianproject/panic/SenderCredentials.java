@@ -0,0 +1,369 @@
+package info.guardianproject.panic;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@link Panic#EXTRA_SENDER} credentials that let responders without an
+ * {@link Activity} verify which app sent a trigger.
+ * <p>
+ * Each {@link android.content.BroadcastReceiver} and {@link android.app.Service}
+ * target of an armed trigger gets its own {@link PendingIntent} when it is
+ * armed, created by the trigger app and naming the one responder it was
+ * issued to.  Creating each one is a call to the system, so triggers sent
+ * without arming take a spare that was issued ahead of time in the
+ * background instead, and a new spare is issued after each one is taken.
+ * A responder that has no spare ready yet gets no credential.
+ * {@link Activity} targets do not need one, they can use
+ * {@link Activity#getCallingActivity()}.  The system vouches for
+ * which app created it, but a responder cannot read what is inside it, and a
+ * responder could pass its credential on to another app.  So the receiving
+ * responder sends the credential back to the trigger app, whose
+ * {@link SenderVerificationReceiver} answers with the package it was issued
+ * to.  A credential can only be checked once, then it is cancelled.  Each
+ * one is told apart by the nonce in its {@link Uri}, so they all share one
+ * request code.  Once delivered, a credential is cancelled after
+ * {@link #CREDENTIAL_LIFETIME_MILLIS} even if it was never checked, and at
+ * most {@link #MAX_PER_RECIPIENT} are kept for each responder.
+ * <p>
+ * Credentials only live in the memory of the trigger app's process, so they
+ * can no longer be verified if that process has died.  Then the responder
+ * falls back to treating it as a trigger from an unknown app.
+ */
+final class SenderCredentials {
+
+    static final String NONCE_SCHEME = "panickit-sender";
+
+    /** how long a responder has to check its credential, once it was delivered */
+    static final long CREDENTIAL_LIFETIME_MILLIS = 60 * 1000;
+    /** enough for an armed plan and a spare, plus the ones from a few recent firings */
+    static final int MAX_PER_RECIPIENT = 4;
+    /** how long a responder waits for the trigger app to answer */
+    static final long VERIFY_TIMEOUT_MILLIS = 5000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class Issued {
+        final String nonce;
+        final String recipientPackageName;
+        final PendingIntent credential;
+        /** 0 until it is delivered */
+        long deliveredElapsedRealtime;
+        /** issued ahead of time, and not taken by {@link #takeSpare(Context, String)} yet */
+        boolean spare;
+
+        Issued(String nonce, String recipientPackageName, PendingIntent credential, boolean spare) {
+            this.nonce = nonce;
+            this.recipientPackageName = recipientPackageName;
+            this.credential = credential;
+            this.spare = spare;
+        }
+
+        boolean isExpired(long now) {
+            return deliveredElapsedRealtime != 0
+                    && deliveredElapsedRealtime + CREDENTIAL_LIFETIME_MILLIS < now;
+        }
+    }
+
+    /** nonce to credential, guarded by itself, along with {@link #BY_RECIPIENT} */
+    private static final Map<String, Issued> ISSUED = new HashMap<String, Issued>();
+    /** recipient package to its credentials, oldest first */
+    private static final Map<String, LinkedList<Issued>> BY_RECIPIENT =
+            new HashMap<String, LinkedList<Issued>>();
+    private static Handler sweepHandler;
+    private static boolean sweepScheduled;
+
+    private static final Runnable SWEEP = new Runnable() {
+        @Override
+        public void run() {
+            List<Issued> expired = new ArrayList<Issued>();
+            long now = SystemClock.elapsedRealtime();
+            synchronized (ISSUED) {
+                sweepScheduled = false;
+                boolean delivered = false;
+                Iterator<Issued> iterator = ISSUED.values().iterator();
+                while (iterator.hasNext()) {
+                    Issued issued = iterator.next();
+                    if (issued.isExpired(now)) {
+                        iterator.remove();
+                        LinkedList<Issued> issuedToRecipient = BY_RECIPIENT.get(issued.recipientPackageName);
+                        issuedToRecipient.remove(issued);
+                        if (issuedToRecipient.isEmpty()) {
+                            BY_RECIPIENT.remove(issued.recipientPackageName);
+                        }
+                        expired.add(issued);
+                    } else if (issued.deliveredElapsedRealtime != 0) {
+                        delivered = true;
+                    }
+                }
+                if (delivered) {
+                    scheduleSweep();
+                }
+            }
+            for (Issued issued : expired) {
+                issued.credential.cancel();
+            }
+        }
+    };
+
+    private SenderCredentials() {
+    }
+
+    /**
+     * Trigger side: create a new credential that only
+     * {@code recipientPackageName} can verify.  This is done when a trigger
+     * is armed, not when it is sent.  If that responder already has
+     * {@link #MAX_PER_RECIPIENT} credentials, the oldest one is cancelled,
+     * preferring ones that were already delivered.
+     */
+    static PendingIntent issue(Context context, String recipientPackageName) {
+        return issue(context, recipientPackageName, false);
+    }
+
+    /**
+     * Trigger side: take the spare credential for {@code recipientPackageName},
+     * without any call to the system, then issue the next spare in the
+     * background.
+     *
+     * @return the credential, or {@code null} if no spare is ready yet
+     */
+    static PendingIntent takeSpare(Context context, String recipientPackageName) {
+        PendingIntent credential = null;
+        synchronized (ISSUED) {
+            LinkedList<Issued> issuedToRecipient = BY_RECIPIENT.get(recipientPackageName);
+            if (issuedToRecipient != null) {
+                for (Issued issued : issuedToRecipient) {
+                    if (issued.spare) {
+                        issued.spare = false;
+                        credential = issued.credential;
+                        break;
+                    }
+                }
+            }
+        }
+        prepareSpare(context, recipientPackageName);
+        return credential;
+    }
+
+    /**
+     * Trigger side: issue a spare credential for {@code recipientPackageName}
+     * in the background, unless it already has one.
+     */
+    static void prepareSpare(Context context, final String recipientPackageName) {
+        final Context app = context.getApplicationContext() == null
+                ? context : context.getApplicationContext();
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ISSUED) {
+                    LinkedList<Issued> issuedToRecipient = BY_RECIPIENT.get(recipientPackageName);
+                    if (issuedToRecipient != null) {
+                        for (Issued issued : issuedToRecipient) {
+                            if (issued.spare) {
+                                return;
+                            }
+                        }
+                    }
+                }
+                // only ever run on this one thread, so no other spare can be issued meanwhile
+                issue(app, recipientPackageName, true);
+            }
+        });
+    }
+
+    private static PendingIntent issue(Context context, String recipientPackageName,
+                                       boolean spare) {
+        String nonce = Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong());
+        Intent intent = new Intent(context, SenderVerificationReceiver.class);
+        intent.setAction(Panic.ACTION_SENDER);
+        // the data is part of what makes each PendingIntent distinct, extras are not
+        intent.setData(Uri.fromParts(NONCE_SCHEME, nonce, null));
+        int flags = 0;
+        if (Build.VERSION.SDK_INT >= 23) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        PendingIntent credential = PendingIntent.getBroadcast(context, 0, intent, flags);
+        Issued evicted = null;
+        synchronized (ISSUED) {
+            Issued issued = new Issued(nonce, recipientPackageName, credential, spare);
+            ISSUED.put(nonce, issued);
+            LinkedList<Issued> issuedToRecipient = BY_RECIPIENT.get(recipientPackageName);
+            if (issuedToRecipient == null) {
+                issuedToRecipient = new LinkedList<Issued>();
+                BY_RECIPIENT.put(recipientPackageName, issuedToRecipient);
+            }
+            issuedToRecipient.add(issued);
+            if (issuedToRecipient.size() > MAX_PER_RECIPIENT) {
+                for (Issued candidate : issuedToRecipient) {
+                    if (candidate.deliveredElapsedRealtime != 0) {
+                        evicted = candidate;
+                        break;
+                    }
+                }
+                if (evicted == null) {
+                    evicted = issuedToRecipient.getFirst();
+                }
+                issuedToRecipient.remove(evicted);
+                ISSUED.remove(evicted.nonce);
+            }
+        }
+        if (evicted != null) {
+            evicted.credential.cancel();
+        }
+        return credential;
+    }
+
+    /**
+     * Trigger side: start the lifetime of the credential in {@code intent},
+     * right before it is handed to the system.
+     */
+    static void onDelivered(Intent intent) {
+        Parcelable extra = intent.getParcelableExtra(Panic.EXTRA_SENDER);
+        if (extra == null) {
+            return;
+        }
+        synchronized (ISSUED) {
+            LinkedList<Issued> issuedToRecipient = BY_RECIPIENT.get(intent.getPackage());
+            if (issuedToRecipient == null) {
+                return;
+            }
+            for (Issued issued : issuedToRecipient) {
+                if (issued.credential == extra) {
+                    if (issued.deliveredElapsedRealtime == 0) {
+                        issued.deliveredElapsedRealtime = SystemClock.elapsedRealtime();
+                        scheduleSweep();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel delivered credentials that were never checked once their
+     * lifetime is up, rather than leaving them until the next trigger.
+     * Must be called holding the lock on {@link #ISSUED}.
+     */
+    private static void scheduleSweep() {
+        if (sweepScheduled) {
+            return;
+        }
+        if (sweepHandler == null) {
+            sweepHandler = new Handler(Looper.getMainLooper());
+        }
+        sweepScheduled = true;
+        sweepHandler.postDelayed(SWEEP, CREDENTIAL_LIFETIME_MILLIS);
+    }
+
+    /**
+     * Trigger side: use up the credential for {@code nonce}.
+     *
+     * @return the package it was issued to, or {@code null} if it is
+     * unknown, expired or was already used
+     */
+    static String redeem(String nonce) {
+        if (nonce == null) {
+            return null;
+        }
+        Issued issued;
+        synchronized (ISSUED) {
+            issued = ISSUED.remove(nonce);
+            if (issued != null) {
+                LinkedList<Issued> issuedToRecipient = BY_RECIPIENT.get(issued.recipientPackageName);
+                issuedToRecipient.remove(issued);
+                if (issuedToRecipient.isEmpty()) {
+                    BY_RECIPIENT.remove(issued.recipientPackageName);
+                }
+            }
+        }
+        if (issued == null) {
+            return null;
+        }
+        issued.credential.cancel();
+        // never delivered means it did not come from the recipient
+        if (issued.deliveredElapsedRealtime == 0 || issued.isExpired(SystemClock.elapsedRealtime())) {
+            return null;
+        }
+        return issued.recipientPackageName;
+    }
+
+    /**
+     * Responder side: check the {@link Panic#EXTRA_SENDER} in {@code intent}
+     * with the app that created it.  This waits for that app to answer, so
+     * it must not be called on the main thread.
+     *
+     * @return the package of the trigger app, if it issued the credential to
+     * this app, otherwise {@code null}
+     */
+    static String verify(Context context, Intent intent) {
+        Parcelable extra = intent.getParcelableExtra(Panic.EXTRA_SENDER);
+        if (!(extra instanceof PendingIntent)) {
+            return null;
+        }
+        PendingIntent credential = (PendingIntent) extra;
+        String creatorPackageName = getCreatorPackage(credential);
+        if (TextUtils.isEmpty(creatorPackageName)) {
+            return null;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> recipient = new AtomicReference<String>();
+        try {
+            // with no Handler, the answer arrives on a binder thread, so this can wait for it
+            credential.send(context, 0, null, new PendingIntent.OnFinished() {
+                @Override
+                public void onSendFinished(PendingIntent pendingIntent, Intent intent, int resultCode,
+                                           String resultData, Bundle resultExtras) {
+                    if (resultCode == Activity.RESULT_OK) {
+                        recipient.set(resultData);
+                    }
+                    latch.countDown();
+                }
+            }, null);
+            if (!latch.await(VERIFY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (PendingIntent.CanceledException e) {
+            return null; // already used, or the trigger app's process is gone
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (!context.getPackageName().equals(recipient.get())) {
+            return null; // issued to some other app, which passed it on
+        }
+        return creatorPackageName;
+    }
+
+    @TargetApi(17)
+    private static String getCreatorPackage(PendingIntent credential) {
+        if (Build.VERSION.SDK_INT >= 17) {
+            return credential.getCreatorPackage();
+        } else {
+            // the same value, renamed in android-17
+            return credential.getTargetPackage();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package info.guardianproject.panic;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Answers responders that are checking a {@link Panic#EXTRA_SENDER}
+ * credential, telling them which app it was issued to.  This is not
+ * exported, it is only reached through the credential itself, which runs
+ * as this app.  It is declared in this library's {@code AndroidManifest.xml},
+ * so trigger apps do not need to do anything.
+ */
+public class SenderVerificationReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        String recipientPackageName = SenderCredentials.redeem(
+                data == null ? null : data.getSchemeSpecificPart());
+        if (recipientPackageName == null) {
+            setResult(Activity.RESULT_CANCELED, null, null);
+        } else {
+            setResult(Activity.RESULT_OK, recipientPackageName, null);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The original {@link ResponderStateStore}, which uses one
+ * {@link SharedPreferences} file per flag.  Being present in the file means
+ * the flag is set.
+ */
+final class SharedPreferencesStateStore implements ResponderStateStore {
+
+    private static final int SHARED_PREFS_MODE = Context.MODE_PRIVATE;
+    static final String CONNECTED_SHARED_PREFS = "info.guardianproject.panic.PanicTrigger.CONNECTED";
+    static final String ENABLED_SHARED_PREFS = "info.guardianproject.panic.PanicTrigger.ENABLED";
+
+    private final Context context;
+
+    SharedPreferencesStateStore(Context context) {
+        this.context = context;
+    }
+
+    SharedPreferences getSharedPreferences(int flag) {
+        String name = flag == FLAG_CONNECTED ? CONNECTED_SHARED_PREFS : ENABLED_SHARED_PREFS;
+        return context.getSharedPreferences(name, SHARED_PREFS_MODE);
+    }
+
+    @Override
+    public Set<String> getPackageNames(int flag) {
+        return new HashSet<String>(getSharedPreferences(flag).getAll().keySet());
+    }
+
+    @Override
+    public boolean contains(String packageName, int flag) {
+        return getSharedPreferences(flag).contains(packageName);
+    }
+
+    @Override
+    public boolean update(Collection<String> packageNames, int flag, boolean set) {
+        SharedPreferences.Editor editor = getSharedPreferences(flag).edit();
+        for (String packageName : packageNames) {
+            if (TextUtils.isEmpty(packageName)) {
+                continue;
+            }
+            if (set) {
+                editor.putBoolean(packageName, true);
+            } else {
+                editor.remove(packageName);
+            }
+        }
+        return editor.commit();
+    }
+}
@@ -0,0 +1,140 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.text.TextUtils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 digests of the APK signing certificates of other apps, for pinning
+ * the apps that this app is connected to.  Each digest is computed once and
+ * then kept in memory, along with the {@code lastUpdateTime} of the install
+ * it came from, until that package is added, removed or changed.  So
+ * checking a pin again is just a map lookup.
+ */
+final class SigningCertificates {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final class Entry {
+        final long lastUpdateTime;
+        final String digest;
+
+        Entry(long lastUpdateTime, String digest) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.digest = digest;
+        }
+    }
+
+    private static final Map<String, Entry> CACHE = new ConcurrentHashMap<String, Entry>();
+    private static final PackageChangeReceiver.Listener PACKAGE_LISTENER =
+            new PackageChangeReceiver.Listener() {
+                @Override
+                public void onPackageChanged(String packageName) {
+                    if (packageName == null) {
+                        CACHE.clear();
+                    } else {
+                        CACHE.remove(packageName);
+                    }
+                }
+            };
+
+    private SigningCertificates() {
+    }
+
+    /**
+     * Get the digest of the signing certificates of {@code packageName}.
+     * If the app has more than one signer, the digest of each is included,
+     * sorted and separated by commas.
+     *
+     * @return the uppercase hex SHA-256 digest, or {@code null} if the
+     * package is not installed
+     */
+    static String getDigest(Context context, String packageName) {
+        if (TextUtils.isEmpty(packageName)) {
+            return null;
+        }
+        Entry entry = CACHE.get(packageName);
+        if (entry != null) {
+            return entry.digest;
+        }
+        PackageChangeReceiver.addListener(context, PACKAGE_LISTENER);
+        PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(packageName,
+                    PackageManager.GET_SIGNATURES);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        String digest = computeDigest(packageInfo.signatures);
+        if (digest != null) {
+            Entry existing = CACHE.get(packageName);
+            // keep whichever entry is from the newer install
+            if (existing == null || existing.lastUpdateTime <= packageInfo.lastUpdateTime) {
+                CACHE.put(packageName, new Entry(packageInfo.lastUpdateTime, digest));
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Compute the digest of {@code packageName} in the background, so that
+     * it is ready when it is next needed.
+     */
+    static void preload(Context context, final String packageName) {
+        if (TextUtils.isEmpty(packageName) || CACHE.containsKey(packageName)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDigest(appContext, packageName);
+            }
+        });
+    }
+
+    /**
+     * Check {@code packageName} against a digest from {@link #getDigest(Context, String)}.
+     * There is nothing to check against when {@code pinnedDigest} is
+     * {@code null}, so that passes.
+     */
+    static boolean matches(Context context, String packageName, String pinnedDigest) {
+        return pinnedDigest == null || pinnedDigest.equals(getDigest(context, packageName));
+    }
+
+    private static String computeDigest(Signature[] signatures) {
+        if (signatures == null || signatures.length == 0) {
+            return null;
+        }
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+        String[] digests = new String[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            digests[i] = toHex(messageDigest.digest(signatures[i].toByteArray()));
+        }
+        Arrays.sort(digests);
+        return TextUtils.join(",", digests);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,124 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A process-wide, in-memory index of the installed panic trigger apps, as
+ * found by {@link PanicResponder#resolveTriggerApps(PackageManager)}.  The
+ * whole system is only scanned when the index is first needed.  After that,
+ * when a package is added, removed or changed, only that package is
+ * resolved again, and that is put off until the next lookup so the package
+ * broadcast itself stays cheap.  While nothing has changed, a lookup just
+ * returns the same list.
+ * <p>
+ * Both the scan and each update take two queries, one for
+ * {@link Panic#ACTION_CONNECT} and one for {@link Panic#ACTION_TRIGGER},
+ * since a trigger app is one that has the first but not the second, and
+ * {@link PackageManager#queryIntentActivities(Intent, int)} only matches a
+ * single action.  The second query is skipped when the first finds nothing.
+ */
+final class TriggerAppIndex {
+
+    private static final Object LOCK = new Object();
+    private static final Queue<String> CHANGED_PACKAGES = new ConcurrentLinkedQueue<String>();
+    private static final PackageChangeReceiver.Listener PACKAGE_LISTENER =
+            new PackageChangeReceiver.Listener() {
+                @Override
+                public void onPackageChanged(String packageName) {
+                    if (packageName == null) {
+                        needsFullScan = true;
+                    } else {
+                        CHANGED_PACKAGES.add(packageName);
+                    }
+                }
+            };
+
+    private static volatile boolean needsFullScan = true;
+
+    /** {@code CONNECT} activities of each trigger app, guarded by {@link #LOCK} */
+    private static final Map<String, List<ResolveInfo>> TRIGGER_APPS
+            = new LinkedHashMap<String, List<ResolveInfo>>();
+    private static List<ResolveInfo> triggerAppsList;
+
+    private TriggerAppIndex() {
+    }
+
+    /**
+     * Get the installed panic trigger apps, bringing the index up to date
+     * first if any packages have changed since the last call.
+     *
+     * @return an unmodifiable list of the {@link Panic#ACTION_CONNECT}
+     * activities of the trigger apps
+     */
+    static List<ResolveInfo> get(Context context) {
+        PackageChangeReceiver.addListener(context, PACKAGE_LISTENER);
+        PackageManager pm = context.getPackageManager();
+        synchronized (LOCK) {
+            if (needsFullScan) {
+                needsFullScan = false;
+                CHANGED_PACKAGES.clear();
+                TRIGGER_APPS.clear();
+                for (ResolveInfo connect : PanicResponder.resolveTriggerApps(pm)) {
+                    addTriggerApp(connect);
+                }
+                triggerAppsList = null;
+            }
+            String packageName;
+            while ((packageName = CHANGED_PACKAGES.poll()) != null) {
+                resolvePackage(pm, packageName);
+                triggerAppsList = null;
+            }
+            if (triggerAppsList == null) {
+                List<ResolveInfo> list = new ArrayList<ResolveInfo>(TRIGGER_APPS.size());
+                for (List<ResolveInfo> connects : TRIGGER_APPS.values()) {
+                    list.addAll(connects);
+                }
+                triggerAppsList = Collections.unmodifiableList(list);
+            }
+            return triggerAppsList;
+        }
+    }
+
+    private static void addTriggerApp(ResolveInfo connect) {
+        String packageName = connect.activityInfo.packageName;
+        List<ResolveInfo> connects = TRIGGER_APPS.get(packageName);
+        if (connects == null) {
+            connects = new ArrayList<ResolveInfo>(1);
+            TRIGGER_APPS.put(packageName, connects);
+        }
+        connects.add(connect);
+    }
+
+    /**
+     * Apply the same rule as {@link PanicResponder#resolveTriggerApps(PackageManager)},
+     * but only to the activities in {@code packageName}.
+     */
+    private static void resolvePackage(PackageManager pm, String packageName) {
+        TRIGGER_APPS.remove(packageName);
+        Intent connectIntent = new Intent(Panic.ACTION_CONNECT);
+        connectIntent.setPackage(packageName);
+        List<ResolveInfo> connects = pm.queryIntentActivities(connectIntent, 0);
+        if (connects.size() == 0) {
+            return;
+        }
+        Intent triggerIntent = new Intent(Panic.ACTION_TRIGGER);
+        triggerIntent.setPackage(packageName);
+        if (pm.queryIntentActivities(triggerIntent, 0).size() > 0) {
+            return; // a responder, not a trigger app
+        }
+        for (ResolveInfo connect : connects) {
+            addTriggerApp(connect);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.drawable.Drawable;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small LRU cache of the labels and icons of panic trigger apps, so that
+ * {@link PanicResponder#configTriggerAppListPreferenceAsync(android.preference.ListPreference, int, int)}
+ * does not need to decode them again every time the settings screen is
+ * opened.  Entries are keyed by package name and only used while the
+ * package's {@link PackageInfo#lastUpdateTime} still matches, so an app
+ * update that changes the label or icon is picked up.
+ * <p>
+ * {@link android.util.LruCache} is not used since it needs API 12.
+ */
+final class TriggerAppInfoCache {
+
+    static final int MAX_ENTRIES = 32;
+
+    static final class Entry {
+        final String packageName;
+        final long lastUpdateTime;
+        final CharSequence label;
+        /**
+         * Only the {@link Drawable.ConstantState} is kept, since a
+         * {@code Drawable} holds a callback to the {@link android.view.View}
+         * showing it, and so to its {@link android.app.Activity}.
+         */
+        private final Drawable.ConstantState iconState;
+        /** only set when the icon cannot be shared, then this is not cached */
+        private final Drawable uncachedIcon;
+
+        Entry(String packageName, long lastUpdateTime, CharSequence label, Drawable icon) {
+            this.packageName = packageName;
+            this.lastUpdateTime = lastUpdateTime;
+            this.label = label;
+            this.iconState = icon == null ? null : icon.getConstantState();
+            this.uncachedIcon = iconState == null ? icon : null;
+        }
+
+        /**
+         * @return a new {@link Drawable} of the icon for each screen that
+         * shows it, or {@code null} if there is none
+         */
+        Drawable newIcon() {
+            return iconState == null ? uncachedIcon : iconState.newDrawable();
+        }
+
+        boolean isCacheable() {
+            return uncachedIcon == null;
+        }
+    }
+
+    private static final Map<String, Entry> CACHE
+            = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TriggerAppInfoCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private TriggerAppInfoCache() {
+    }
+
+    /**
+     * Get the last loaded entry for {@code packageName} without touching
+     * {@link PackageManager}, so it is safe to call on the main thread.
+     * The entry might be stale, so it should be checked again with
+     * {@link #load(PackageManager, String)} in the background.
+     *
+     * @return the cached entry or {@code null} if there is none
+     */
+    static Entry peek(String packageName) {
+        synchronized (CACHE) {
+            return CACHE.get(packageName);
+        }
+    }
+
+    /**
+     * Get the label and icon of {@code packageName}, loading them from
+     * {@link PackageManager} if they are not cached or the app has been
+     * updated since they were.  This must not be called on the main thread.
+     *
+     * @return the entry for the package
+     * @throws PackageManager.NameNotFoundException if the package is not installed
+     */
+    static Entry load(PackageManager pm, String packageName)
+            throws PackageManager.NameNotFoundException {
+        PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
+        Entry entry = peek(packageName);
+        if (entry != null && entry.lastUpdateTime == packageInfo.lastUpdateTime) {
+            return entry;
+        }
+        ApplicationInfo applicationInfo = packageInfo.applicationInfo;
+        if (applicationInfo == null) {
+            applicationInfo = pm.getApplicationInfo(packageName, 0);
+        }
+        entry = new Entry(packageName, packageInfo.lastUpdateTime,
+                pm.getApplicationLabel(applicationInfo),
+                pm.getApplicationIcon(applicationInfo));
+        if (entry.isCacheable()) {
+            synchronized (CACHE) {
+                CACHE.put(packageName, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Load the entries for all installed panic trigger apps in the
+     * background, as found by {@link PanicResponder#resolveTriggerApps(Context)}.
+     */
+    static void preload(Context context) {
+        final Context appContext = context.getApplicationContext();
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                PackageManager pm = appContext.getPackageManager();
+                List<ResolveInfo> triggerApps = PanicResponder.resolveTriggerApps(appContext);
+                for (int i = 0; i < triggerApps.size(); i++) {
+                    try {
+                        load(pm, triggerApps.get(i).activityInfo.packageName);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        // uninstalled since it was resolved, nothing to cache
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package info.guardianproject.panic;
+
+import android.content.Intent;
+
+/**
+ * A single delivery of a {@link Panic#ACTION_TRIGGER} {@link Intent} to one
+ * kind of component in one responder app.  A responder app that has an
+ * {@link android.app.Activity}, a {@link android.content.BroadcastReceiver}
+ * and a {@link android.app.Service} for {@code ACTION_TRIGGER} is represented
+ * by three {@code TriggerTarget}s.
+ */
+public final class TriggerTarget {
+
+    /**
+     * The kind of component that a {@link TriggerTarget} is delivered to.
+     */
+    public enum ComponentType {
+        ACTIVITY,
+        BROADCAST_RECEIVER,
+        SERVICE,
+    }
+
+    /**
+     * Returned by {@link #getExpectedResponseMillis()} when the responder
+     * does not declare {@link Panic#META_DATA_EXPECTED_RESPONSE_MILLIS}.
+     */
+    public static final int UNKNOWN_RESPONSE_MILLIS = -1;
+
+    final String packageName;
+    final ComponentType componentType;
+    final Intent intent;
+    final int priority;
+    final int expectedResponseMillis;
+
+    TriggerTarget(String packageName, ComponentType componentType, Intent intent,
+                  int priority, int expectedResponseMillis) {
+        this.packageName = packageName;
+        this.componentType = componentType;
+        this.intent = intent;
+        this.priority = priority;
+        this.expectedResponseMillis = expectedResponseMillis;
+    }
+
+    /**
+     * @return a copy of this target that delivers {@code intent} instead
+     */
+    TriggerTarget withIntent(Intent intent) {
+        return new TriggerTarget(packageName, componentType, intent, priority,
+                expectedResponseMillis);
+    }
+
+    /**
+     * @return the {@code packageName} of the responder app
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return the kind of component that receives the trigger
+     */
+    public ComponentType getComponentType() {
+        return componentType;
+    }
+
+    /**
+     * @return the {@link Panic#META_DATA_PRIORITY} the responder declared, or {@code 0}
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the {@link Panic#META_DATA_EXPECTED_RESPONSE_MILLIS} the
+     * responder declared, or {@link #UNKNOWN_RESPONSE_MILLIS}
+     */
+    public int getExpectedResponseMillis() {
+        return expectedResponseMillis;
+    }
+
+    @Override
+    public String toString() {
+        return packageName + "/" + componentType;
+    }
+}
@@ -0,0 +1,468 @@
+package info.guardianproject.panic;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes directory trees using several threads, without recursion.  Each
+ * worker thread has its own queue of directories to list.  It takes the
+ * newest directory from its own queue, so each worker walks depth-first, and
+ * when its own queue is empty, it steals the oldest directory from another
+ * worker's queue.  A worker with nothing to take waits until a directory is
+ * queued or the wipe is over.  Files are deleted as soon as they are listed.
+ * The directories themselves are deleted at the end, deepest first.  The
+ * worker threads are shared by all wipes and are kept for a while after each.
+ * <p>
+ * Symbolic links are deleted without following them, and are never
+ * overwritten, since that would overwrite what they point to.  That includes
+ * roots that are symbolic links.
+ * <p>
+ * A wipe can be given a deadline, after which no more files are deleted and
+ * the {@link WipeResult} is marked as timed out.
+ * <p>
+ * Files inside the secure overwrite paths are overwritten with zeros and
+ * synced to storage before they are deleted.  Each worker writes from its
+ * own direct {@link ByteBuffer}, which is allocated once and reused for
+ * every file, so the kernel can copy straight from it.
+ */
+final class WipeEngine {
+
+    private static final int OVERWRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MASK = 0xff;
+
+    private final int threadCount;
+    private static ExecutorService workerExecutor;
+
+    private final List<LinkedBlockingDeque<File>> queues;
+    /** directories that are queued or being listed */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /** directories that are queued and not taken yet */
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    private final Object idleLock = new Object();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong bytesDeleted = new AtomicLong();
+    private final AtomicLong bytesOverwritten = new AtomicLong();
+    private final List<String> overwritePrefixes;
+    private final ByteBuffer[] overwriteBuffers;
+    private final WipeListener listener;
+    private final long createdAt;
+    private final ConcurrentLinkedQueue<File> directories = new ConcurrentLinkedQueue<File>();
+    private final ConcurrentLinkedQueue<File> failures = new ConcurrentLinkedQueue<File>();
+    private volatile long deadline;
+    private volatile boolean timedOut;
+
+    /**
+     * @param threadCount          the number of threads to delete with
+     * @param secureOverwritePaths files and directories whose contents are
+     *                             overwritten before being deleted
+     * @param listener             receives progress reports, with times
+     *                             measured from when this is created
+     */
+    WipeEngine(int threadCount, Collection<File> secureOverwritePaths, WipeListener listener) {
+        this.threadCount = Math.max(1, threadCount);
+        this.listener = listener == null ? WipeListener.NONE : listener;
+        createdAt = SystemClock.elapsedRealtime();
+        overwriteBuffers = new ByteBuffer[this.threadCount];
+        overwritePrefixes = new ArrayList<String>();
+        for (File path : removeNestedRoots(secureOverwritePaths)) {
+            overwritePrefixes.add(path.getPath());
+        }
+        queues = new ArrayList<LinkedBlockingDeque<File>>(this.threadCount);
+        for (int i = 0; i < this.threadCount; i++) {
+            queues.add(new LinkedBlockingDeque<File>());
+        }
+    }
+
+    /**
+     * Reduce {@code roots} to the ones that are not inside any other root,
+     * so that no tree is walked twice.  {@code null} entries are dropped.
+     * Only the parent of each root is resolved, so a root that is a
+     * symbolic link stays the link, rather than becoming what it points to.
+     */
+    static List<File> removeNestedRoots(Collection<File> roots) {
+        List<File> normalized = new ArrayList<File>(roots.size());
+        for (File root : roots) {
+            if (root != null) {
+                normalized.add(normalize(root));
+            }
+        }
+        // parents sort before their children, since a child path is longer
+        Collections.sort(normalized, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return lhs.getPath().length() - rhs.getPath().length();
+            }
+        });
+        List<File> result = new ArrayList<File>(normalized.size());
+        for (File root : normalized) {
+            if (!isInside(root, result)) {
+                result.add(root);
+            }
+        }
+        return result;
+    }
+
+    private static File normalize(File root) {
+        File absolute = root.getAbsoluteFile();
+        String name = absolute.getName();
+        File parent = absolute.getParentFile();
+        try {
+            if (parent == null || ".".equals(name) || "..".equals(name)) {
+                return absolute.getCanonicalFile();
+            }
+            return new File(parent.getCanonicalFile(), name);
+        } catch (IOException e) {
+            return absolute;
+        }
+    }
+
+    private static boolean isInside(File file, List<File> roots) {
+        String path = file.getPath();
+        for (File root : roots) {
+            String rootPath = root.getPath();
+            if (path.equals(rootPath)) {
+                return true;
+            }
+            if (!rootPath.endsWith(File.separator)) {
+                rootPath += File.separator;
+            }
+            if (path.startsWith(rootPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete everything in {@code roots}, including the roots themselves.
+     * This blocks until the wipe is complete, and the calling thread does
+     * its share of the work.
+     */
+    WipeResult wipe(Collection<File> roots) {
+        return wipe(roots, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #wipe(Collection)}, but stop deleting once
+     * {@link SystemClock#elapsedRealtime()} reaches {@code deadline}.
+     * Each call returns the counts for that call only, while progress
+     * reports have the totals from all calls.
+     */
+    WipeResult wipe(Collection<File> roots, long deadline) {
+        long start = SystemClock.elapsedRealtime();
+        long startFiles = filesDeleted.get();
+        long startBytes = bytesDeleted.get();
+        long startOverwritten = bytesOverwritten.get();
+        this.deadline = deadline;
+        timedOut = false;
+        directories.clear();
+        failures.clear();
+        // a call that hit its deadline leaves directories queued, start over without them
+        for (LinkedBlockingDeque<File> queue : queues) {
+            queue.clear();
+        }
+        outstanding.set(0);
+        queued.set(0);
+        int i = 0;
+        for (File root : removeNestedRoots(roots)) {
+            listener.onRootStarted(root);
+            if (isSymlink(root)) {
+                // only the link itself, even if it points to a directory
+                deleteFile(root, 0);
+            } else if (root.isDirectory()) {
+                enqueue(root, i++ % threadCount);
+            } else if (root.exists()) {
+                deleteFile(root, 0);
+            }
+        }
+
+        List<Future<?>> workers = new ArrayList<Future<?>>(threadCount - 1);
+        if (outstanding.get() > 0) {
+            ExecutorService executor = getWorkerExecutor();
+            for (int worker = 1; worker < threadCount; worker++) {
+                final int index = worker;
+                workers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(index);
+                    }
+                }));
+            }
+            work(0);
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+
+        if (!timedOut) {
+            deleteDirectories();
+        }
+        return new WipeResult(filesDeleted.get() - startFiles, bytesDeleted.get() - startBytes,
+                bytesOverwritten.get() - startOverwritten, new ArrayList<File>(failures),
+                SystemClock.elapsedRealtime() - start, timedOut);
+    }
+
+    private void enqueue(File dir, int index) {
+        directories.add(dir);
+        outstanding.incrementAndGet();
+        queues.get(index).addLast(dir);
+        queued.incrementAndGet();
+        if (idleWorkers.get() > 0) {
+            wakeIdleWorkers();
+        }
+    }
+
+    private void work(int index) {
+        LinkedBlockingDeque<File> own = queues.get(index);
+        while (!isPastDeadline()) {
+            File dir = own.pollLast();
+            if (dir == null) {
+                dir = steal(index);
+            }
+            if (dir == null) {
+                if (!awaitWork()) {
+                    return;
+                }
+                continue;
+            }
+            queued.decrementAndGet();
+            try {
+                listDirectory(dir, index);
+            } finally {
+                if (outstanding.decrementAndGet() == 0) {
+                    // nothing more can be queued, so the idle workers are done
+                    wakeIdleWorkers();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until a directory is queued.  A worker counts itself as idle
+     * before checking the queues, and {@link #enqueue(File, int)} checks for
+     * idle workers after queueing, so a wakeup cannot be missed.
+     *
+     * @return {@code false} once every directory has been listed, or the
+     * deadline has passed
+     */
+    private boolean awaitWork() {
+        synchronized (idleLock) {
+            idleWorkers.incrementAndGet();
+            try {
+                while (queued.get() == 0) {
+                    if (outstanding.get() == 0 || isPastDeadline()) {
+                        return false;
+                    }
+                    long wait = deadline == Long.MAX_VALUE
+                            ? 0 : Math.max(1, deadline - SystemClock.elapsedRealtime());
+                    idleLock.wait(wait);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                idleWorkers.decrementAndGet();
+            }
+        }
+    }
+
+    private void wakeIdleWorkers() {
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+
+    private File steal(int index) {
+        for (int i = 1; i < threadCount; i++) {
+            File dir = queues.get((index + i) % threadCount).pollFirst();
+            if (dir != null) {
+                return dir;
+            }
+        }
+        return null;
+    }
+
+    private void listDirectory(File dir, int index) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return; // not readable, it will show up as a failure when it is deleted
+        }
+        for (File child : children) {
+            if (isPastDeadline()) {
+                return;
+            }
+            if (child.isDirectory() && !isSymlink(child)) {
+                enqueue(child, index);
+            } else {
+                deleteFile(child, index);
+            }
+        }
+    }
+
+    private boolean isPastDeadline() {
+        if (timedOut) {
+            return true;
+        }
+        if (deadline != Long.MAX_VALUE && SystemClock.elapsedRealtime() >= deadline) {
+            timedOut = true;
+            wakeIdleWorkers();
+        }
+        return timedOut;
+    }
+
+    private void deleteFile(File file, int index) {
+        long length = file.length();
+        // opening a symbolic link would overwrite whatever it points to, even outside the wipe
+        if (length > 0 && isSecureOverwritePath(file) && !isSymlink(file)
+                && !overwrite(file, index)) {
+            // still delete it, but it does not count as securely wiped
+            addFailure(file);
+        }
+        if (file.delete()) {
+            countDeleted(length);
+        } else if (file.exists()) {
+            addFailure(file);
+        }
+    }
+
+    private void countDeleted(long length) {
+        long files = filesDeleted.incrementAndGet();
+        long bytes = bytesDeleted.addAndGet(length);
+        if ((files & PROGRESS_INTERVAL_MASK) == 0) {
+            listener.onProgress(files, bytes, SystemClock.elapsedRealtime() - createdAt);
+        }
+    }
+
+    private void addFailure(File file) {
+        failures.add(file);
+        listener.onFailure(file);
+    }
+
+    private boolean isSecureOverwritePath(File file) {
+        if (overwritePrefixes.isEmpty()) {
+            return false;
+        }
+        String path = file.getPath();
+        for (String prefix : overwritePrefixes) {
+            if (path.equals(prefix) || path.startsWith(prefix + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write zeros over the whole file, then sync it, otherwise the writes
+     * could be thrown away with the file before ever reaching storage.
+     *
+     * @return whether the whole file was overwritten and synced, which is
+     * not the case if it failed or the deadline passed part way through
+     */
+    private boolean overwrite(File file, int index) {
+        ByteBuffer buffer = overwriteBuffers[index];
+        if (buffer == null) {
+            // a new direct buffer is already all zeros
+            buffer = ByteBuffer.allocateDirect(OVERWRITE_BUFFER_SIZE);
+            overwriteBuffers[index] = buffer;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                long length = channel.size();
+                long position = 0;
+                while (position < length && !isPastDeadline()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(OVERWRITE_BUFFER_SIZE, length - position));
+                    position += channel.write(buffer, position);
+                }
+                bytesOverwritten.addAndGet(position);
+                if (position < length) {
+                    return false;
+                }
+                channel.force(false);
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Every directory path is longer than its parent's path, so deleting the
+     * longest paths first always empties a directory before deleting it.
+     */
+    private void deleteDirectories() {
+        List<File> sorted = new ArrayList<File>(directories);
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return rhs.getPath().length() - lhs.getPath().length();
+            }
+        });
+        for (File dir : sorted) {
+            if (dir.delete()) {
+                countDeleted(0);
+            } else if (dir.exists()) {
+                addFailure(dir);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null) {
+            workerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PanicResponder-wipe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workerExecutor;
+    }
+
+    /**
+     * {@code java.nio.file} is not available on older Android versions, so
+     * detect symbolic links by comparing the canonical and absolute paths.
+     */
+    static boolean isSymlink(File file) {
+        try {
+            File parent = file.getParentFile();
+            File resolved = parent == null ? file : new File(parent.getCanonicalFile(), file.getName());
+            return !resolved.getCanonicalFile().equals(resolved.getAbsoluteFile());
+        } catch (IOException e) {
+            return true; // do not follow anything that cannot be resolved
+        }
+    }
+}
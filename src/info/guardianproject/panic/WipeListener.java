@@ -0,0 +1,85 @@
+package info.guardianproject.panic;
+
+import java.io.File;
+
+/**
+ * Receives progress reports while
+ * {@link PanicResponder#deleteAllAppData(android.content.Context, WipePlan)}
+ * is running, so an app can show how far the wipe got, and measure how long
+ * it takes.  The wipe ends by force closing the app, so
+ * {@link #onComplete(WipeResult)} is the last chance to record anything.
+ * <p>
+ * The methods are called from the threads doing the wipe, so they must be
+ * thread-safe and should return quickly.
+ *
+ * @see WipePlan#setListener(WipeListener)
+ */
+public interface WipeListener {
+
+    /**
+     * A listener that does nothing, used when none is set.
+     */
+    WipeListener NONE = new WipeListener() {
+        @Override
+        public void onRootStarted(File root) {
+        }
+
+        @Override
+        public void onProgress(long filesDeleted, long bytesDeleted, long elapsedMillis) {
+        }
+
+        @Override
+        public void onFailure(File file) {
+        }
+
+        @Override
+        public void onKeystoreAliasFailure(String alias) {
+        }
+
+        @Override
+        public void onComplete(WipeResult result) {
+        }
+    };
+
+    /**
+     * Called when deleting a priority path or bulk data directory starts.
+     * Bulk data directories are deleted together, so this can be called for
+     * several of them before their contents are deleted.
+     *
+     * @param root the file or directory
+     */
+    void onRootStarted(File root);
+
+    /**
+     * Called periodically as files are deleted, with totals for the whole wipe.
+     *
+     * @param filesDeleted  files and directories deleted so far
+     * @param bytesDeleted  total size of the files deleted so far
+     * @param elapsedMillis time since the wipe started
+     */
+    void onProgress(long filesDeleted, long bytesDeleted, long elapsedMillis);
+
+    /**
+     * Called for each file or directory that could not be deleted or overwritten.
+     *
+     * @param file the file or directory
+     */
+    void onFailure(File file);
+
+    /**
+     * Called for each registered {@code AndroidKeyStore} alias whose entry
+     * could not be deleted.
+     *
+     * @param alias the keystore alias
+     * @see WipePlan#addKeystoreAlias(String)
+     */
+    void onKeystoreAliasFailure(String alias);
+
+    /**
+     * Called once all of the deleting is done, just before Android is asked
+     * to clear the app's data, which force closes the app.
+     *
+     * @param result the totals for the whole wipe
+     */
+    void onComplete(WipeResult result);
+}
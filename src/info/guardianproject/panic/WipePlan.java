@@ -0,0 +1,201 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how {@link PanicResponder#deleteAllAppData(Context, WipePlan)}
+ * should wipe an app's data.  The most sensitive files and directories are
+ * registered as priority paths, which are destroyed first, in the order they
+ * were added, before anything else is touched.  Then the bulk data
+ * directories, like caches and external media, are deleted until the time
+ * budget runs out.  Last of all, Android is asked to clear the rest of the
+ * app's data, which also force closes the app.
+ * <p>
+ * If the app is killed partway through a wipe, this ordering gives the best
+ * chance that the sensitive data is already gone.
+ * <p>
+ * Apps that keep their data encrypted can also register the key files and
+ * {@code AndroidKeyStore} aliases that protect it.  These are destroyed
+ * before anything else, which takes time in proportion to the number of
+ * keys rather than the amount of data.  The rest of the wipe can then be
+ * left to run in the background with {@link #setWipeInBackground(boolean)}.
+ */
+public final class WipePlan {
+
+    /**
+     * No limit on how long the bulk data deletion can take.
+     */
+    public static final long NO_TIME_BUDGET = Long.MAX_VALUE;
+
+    private final List<File> keyFiles = new ArrayList<File>();
+    private final List<String> keystoreAliases = new ArrayList<String>();
+    private final List<File> priorityPaths = new ArrayList<File>();
+    private final List<File> secureOverwritePaths = new ArrayList<File>();
+    private long timeBudgetMillis = NO_TIME_BUDGET;
+    private boolean wipeInBackground;
+    private WipeListener listener = WipeListener.NONE;
+    private File summaryFile;
+
+    /**
+     * Add a file holding key material, which will be overwritten with
+     * random bytes, synced to storage, then deleted, before anything else.
+     *
+     * @param keyFile the file
+     * @return this plan
+     */
+    public WipePlan addKeyFile(File keyFile) {
+        if (keyFile != null) {
+            keyFiles.add(keyFile);
+        }
+        return this;
+    }
+
+    /**
+     * Add an {@code AndroidKeyStore} alias whose key will be deleted before
+     * anything else.  This requires android-18 or newer.
+     *
+     * @param alias the alias of the key entry
+     * @return this plan
+     */
+    public WipePlan addKeystoreAlias(String alias) {
+        if (alias != null) {
+            keystoreAliases.add(alias);
+        }
+        return this;
+    }
+
+    /**
+     * Add a file or directory to be destroyed before any bulk data.
+     *
+     * @param path the file or directory, directories are deleted with all
+     *             of their contents
+     * @return this plan
+     */
+    public WipePlan addPriorityPath(File path) {
+        if (path != null) {
+            priorityPaths.add(path);
+        }
+        return this;
+    }
+
+    /**
+     * Add a file or directory whose contents should be overwritten with
+     * zeros and synced to storage before being deleted, so that they cannot
+     * be recovered from flash storage that does not erase deleted blocks.
+     * This applies to files in this path wherever they are deleted, whether
+     * as a priority path or as bulk data.  This is much slower than just
+     * deleting, so only use it on the files that need it.
+     *
+     * @param path the file or directory
+     * @return this plan
+     */
+    public WipePlan addSecureOverwritePath(File path) {
+        if (path != null) {
+            secureOverwritePaths.add(path);
+        }
+        return this;
+    }
+
+    /**
+     * Add the standard locations of an app's sensitive data as priority
+     * paths: the {@code databases} and {@code shared_prefs} directories.
+     *
+     * @param context the app's {@link Context}
+     * @return this plan
+     */
+    public WipePlan addDefaultPriorityPaths(Context context) {
+        File dataDir = context.getFilesDir().getParentFile();
+        addPriorityPath(context.getDatabasePath("panic").getParentFile());
+        addPriorityPath(new File(dataDir, "shared_prefs"));
+        return this;
+    }
+
+    /**
+     * Set how long deleting the bulk data directories is allowed to take,
+     * after the priority paths are gone.  When the time runs out, the wipe
+     * moves on to having Android clear the app's data.
+     *
+     * @param timeBudgetMillis the limit in milliseconds, or {@link #NO_TIME_BUDGET}
+     * @return this plan
+     */
+    public WipePlan setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+        return this;
+    }
+
+    /**
+     * Set whether everything after destroying the keys should run on a
+     * background thread, so that
+     * {@link PanicResponder#deleteAllAppData(Context, WipePlan)} returns as
+     * soon as the keys are gone.
+     *
+     * @param wipeInBackground whether to continue in the background
+     * @return this plan
+     */
+    public WipePlan setWipeInBackground(boolean wipeInBackground) {
+        this.wipeInBackground = wipeInBackground;
+        return this;
+    }
+
+    /**
+     * Set the {@link WipeListener} to receive progress reports.
+     *
+     * @param listener the listener, or {@code null} for none
+     * @return this plan
+     */
+    public WipePlan setListener(WipeListener listener) {
+        this.listener = listener == null ? WipeListener.NONE : listener;
+        return this;
+    }
+
+    /**
+     * Set a file to append a one line summary of the wipe to, synced to
+     * storage before the app is force closed.  This must be somewhere
+     * that is not wiped, so not in this app's own data or cache
+     * directories, for example a directory on shared external storage.
+     *
+     * @param summaryFile the file, or {@code null} for no summary
+     * @return this plan
+     */
+    public WipePlan setSummaryFile(File summaryFile) {
+        this.summaryFile = summaryFile;
+        return this;
+    }
+
+    List<File> getKeyFiles() {
+        return Collections.unmodifiableList(keyFiles);
+    }
+
+    List<String> getKeystoreAliases() {
+        return Collections.unmodifiableList(keystoreAliases);
+    }
+
+    WipeListener getListener() {
+        return listener;
+    }
+
+    File getSummaryFile() {
+        return summaryFile;
+    }
+
+    boolean isWipeInBackground() {
+        return wipeInBackground;
+    }
+
+    List<File> getPriorityPaths() {
+        return Collections.unmodifiableList(priorityPaths);
+    }
+
+    List<File> getSecureOverwritePaths() {
+        return Collections.unmodifiableList(secureOverwritePaths);
+    }
+
+    long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+}
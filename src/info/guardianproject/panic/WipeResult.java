@@ -0,0 +1,90 @@
+package info.guardianproject.panic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What was removed when wiping app data, and what could not be removed.
+ */
+public final class WipeResult {
+
+    private final long filesDeleted;
+    private final long bytesDeleted;
+    private final long bytesOverwritten;
+    private final List<File> failures;
+    private final long elapsedMillis;
+    private final boolean timedOut;
+
+    WipeResult(long filesDeleted, long bytesDeleted, long bytesOverwritten, List<File> failures,
+               long elapsedMillis, boolean timedOut) {
+        this.filesDeleted = filesDeleted;
+        this.bytesDeleted = bytesDeleted;
+        this.bytesOverwritten = bytesOverwritten;
+        this.failures = Collections.unmodifiableList(new ArrayList<File>(failures));
+        this.elapsedMillis = elapsedMillis;
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * Combine this with the result of a later stage of the same wipe.
+     */
+    WipeResult plus(WipeResult other) {
+        List<File> allFailures = new ArrayList<File>(failures);
+        allFailures.addAll(other.failures);
+        return new WipeResult(filesDeleted + other.filesDeleted, bytesDeleted + other.bytesDeleted,
+                bytesOverwritten + other.bytesOverwritten, allFailures, elapsedMillis + other.elapsedMillis, timedOut || other.timedOut);
+    }
+
+    /**
+     * @return the number of files and directories that were deleted
+     */
+    public long getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    /**
+     * @return the total size of the files that were deleted
+     */
+    public long getBytesDeleted() {
+        return bytesDeleted;
+    }
+
+    /**
+     * @return the number of bytes that were overwritten before being deleted,
+     * dividing this by {@link #getElapsedMillis()} gives the overwrite speed
+     * @see WipePlan#addSecureOverwritePath(File)
+     */
+    public long getBytesOverwritten() {
+        return bytesOverwritten;
+    }
+
+    /**
+     * @return the files and directories that could not be deleted
+     */
+    public List<File> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return how long the wipe took, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return whether the time budget ran out before everything was deleted
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public String toString() {
+        return "deleted " + filesDeleted + " files (" + bytesDeleted + " bytes, "
+                + bytesOverwritten + " overwritten) in " + elapsedMillis + "ms, " + failures.size() + " failures"
+                + (timedOut ? ", timed out" : "");
+    }
+}
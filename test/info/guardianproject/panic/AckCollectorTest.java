@@ -0,0 +1,152 @@
+package info.guardianproject.panic;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class AckCollectorTest {
+
+    private final List<AckReport> reports = new ArrayList<AckReport>();
+    private final PanicTrigger.OnAcksCollectedListener listener =
+            new PanicTrigger.OnAcksCollectedListener() {
+                @Override
+                public void onAcksCollected(AckReport report) {
+                    reports.add(report);
+                }
+            };
+
+    @Test
+    public void neverModifiesThePlansIntents() {
+        List<TriggerTarget> targets = newTargets("responder.0", "responder.1");
+        List<TriggerTarget> withAcks = new AckCollector(RuntimeEnvironment.application, listener)
+                .expect(targets, 1000);
+
+        assertEquals(targets.size(), withAcks.size());
+        for (int i = 0; i < targets.size(); i++) {
+            assertNull(targets.get(i).intent.getParcelableExtra(Panic.EXTRA_ACK_PENDING_INTENT));
+            assertNotNull(withAcks.get(i).intent.getParcelableExtra(Panic.EXTRA_ACK_PENDING_INTENT));
+            assertEquals(targets.get(i).packageName, withAcks.get(i).packageName);
+            assertEquals(targets.get(i).componentType, withAcks.get(i).componentType);
+        }
+        // each app gets its own
+        assertNotSame(withAcks.get(0).intent.getParcelableExtra(Panic.EXTRA_ACK_PENDING_INTENT),
+                withAcks.get(1).intent.getParcelableExtra(Panic.EXTRA_ACK_PENDING_INTENT));
+        ShadowLooper.idleMainLooper(1000);
+    }
+
+    @Test
+    public void countsEachAckForTheAppItWasIssuedTo() {
+        List<TriggerTarget> withAcks = new AckCollector(RuntimeEnvironment.application, listener)
+                .expect(newTargets("responder.0", "responder.1"), 10000);
+        // another trigger to the same apps, still waiting for its own acks
+        List<TriggerTarget> other = new AckCollector(RuntimeEnvironment.application, null)
+                .expect(newTargets("responder.0", "responder.1"), 10000);
+
+        receive(ack(withAcks.get(0), Panic.ACK_RECEIVED));
+        receive(ack(withAcks.get(1), Panic.ACK_COMPLETED));
+        receive(ack(other.get(0), Panic.ACK_COMPLETED));
+        Intent unknown = new Intent(Panic.ACTION_ACK);
+        unknown.putExtra(Panic.EXTRA_ACK_TOKEN, 1234L);
+        unknown.putExtra(Panic.EXTRA_ACK_TYPE, Panic.ACK_COMPLETED);
+        receive(unknown);
+        assertTrue(reports.isEmpty());
+
+        receive(ack(withAcks.get(0), Panic.ACK_COMPLETED));
+        assertEquals(1, reports.size());
+        AckReport report = reports.get(0);
+        assertFalse(report.isTimedOut());
+        assertEquals(2, report.getAcks().size());
+        for (AckReport.ResponderAck ack : report.getAcks()) {
+            assertTrue(ack.isCompleted());
+            // completing means it must have been received
+            assertTrue(ack.getReceivedMillis() != AckReport.NO_ACK);
+        }
+
+        // acks that arrive after the report are ignored
+        receive(ack(withAcks.get(1), Panic.ACK_COMPLETED));
+        assertEquals(1, reports.size());
+        ShadowLooper.idleMainLooper(10000);
+        assertEquals(1, reports.size());
+    }
+
+    @Test
+    public void reportsTheMissingAcksOnTimeout() {
+        List<TriggerTarget> withAcks = new AckCollector(RuntimeEnvironment.application, listener)
+                .expect(newTargets("responder.0", "responder.1"), 100);
+        receive(ack(withAcks.get(0), Panic.ACK_RECEIVED));
+        assertTrue(reports.isEmpty());
+
+        ShadowLooper.idleMainLooper(100);
+        assertEquals(1, reports.size());
+        AckReport report = reports.get(0);
+        assertTrue(report.isTimedOut());
+        assertTrue(report.getAck("responder.0").getReceivedMillis() != AckReport.NO_ACK);
+        assertFalse(report.getAck("responder.0").isCompleted());
+        assertEquals(AckReport.NO_ACK, report.getAck("responder.1").getReceivedMillis());
+        assertFalse(report.getAck("responder.1").isCompleted());
+
+        // too late to count
+        receive(ack(withAcks.get(1), Panic.ACK_COMPLETED));
+        assertEquals(1, reports.size());
+    }
+
+    @Test
+    public void reportsRightAwayWhenThereAreNoResponders() {
+        new AckCollector(RuntimeEnvironment.application, listener)
+                .expect(Collections.<TriggerTarget>emptyList(), 10000);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, reports.size());
+        assertFalse(reports.get(0).isTimedOut());
+        assertTrue(reports.get(0).getAcks().isEmpty());
+    }
+
+    private static List<TriggerTarget> newTargets(String... packageNames) {
+        List<TriggerTarget> targets = new ArrayList<TriggerTarget>(packageNames.length);
+        for (String packageName : packageNames) {
+            Intent intent = PanicUtils.newTriggerIntent();
+            intent.setPackage(packageName);
+            targets.add(new TriggerTarget(packageName, TriggerTarget.ComponentType.BROADCAST_RECEIVER,
+                    intent, 0, TriggerTarget.UNKNOWN_RESPONSE_MILLIS));
+        }
+        return targets;
+    }
+
+    /**
+     * @return the ack as it arrives from the responder that got {@code target},
+     * filled in like {@link PanicResponder#sendTriggerCompletedAck} does
+     */
+    private static Intent ack(TriggerTarget target, int type) {
+        PendingIntent pendingIntent = target.intent.getParcelableExtra(Panic.EXTRA_ACK_PENDING_INTENT);
+        Intent intent = new Intent(shadowOf(pendingIntent).getSavedIntent());
+        Intent fillIn = new Intent();
+        fillIn.putExtra(Panic.EXTRA_ACK_TYPE, type);
+        fillIn.putExtra(Panic.EXTRA_ACK_ELAPSED_REALTIME, SystemClock.elapsedRealtime());
+        intent.fillIn(fillIn, 0);
+        return intent;
+    }
+
+    private static void receive(Intent intent) {
+        new AckReceiver().onReceive(RuntimeEnvironment.application, intent);
+    }
+}
@@ -0,0 +1,99 @@
+package info.guardianproject.panic;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Fires triggers from many threads at once, all sharing one {@link Intent},
+ * like a widget and a lock screen gesture going off together.  Every
+ * delivery must be addressed to the responder it was sent to.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ConcurrentTriggerTest {
+
+    private static final int RESPONDERS = 30;
+    private static final int THREADS = 8;
+    private static final int TRIGGERS_PER_THREAD = 50;
+
+    @After
+    public void tearDown() throws Exception {
+        FakeResponders.drainBackground();
+    }
+
+    @Test
+    public void everyDeliveryCarriesTheRightPackage() throws Exception {
+        FakeResponders.drainBackground();
+        ResponderRegistry.invalidate();
+        final FakeResponders responders = new FakeResponders(RuntimeEnvironment.application, RESPONDERS);
+        PanicTrigger.enableResponders(responders.context, responders.packageNames);
+
+        final Intent shared = new Intent(Panic.ACTION_TRIGGER);
+        shared.putExtra(Intent.EXTRA_TEXT, "panic");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < TRIGGERS_PER_THREAD; j++) {
+                        if (j % 2 == 0) {
+                            PanicTrigger.sendTrigger(responders.context, shared);
+                        } else {
+                            PanicTrigger.sendTrigger(responders.context);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(THREADS * TRIGGERS_PER_THREAD * RESPONDERS, responders.deliveries.size());
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        int withText = 0;
+        for (FakeResponders.Delivery delivery : responders.deliveries) {
+            String packageName = delivery.intent.getPackage();
+            assertEquals(responders.getComponentType(packageName), delivery.componentType);
+            Integer count = counts.get(packageName);
+            counts.put(packageName, count == null ? 1 : count + 1);
+            if ("panic".equals(delivery.intent.getStringExtra(Intent.EXTRA_TEXT))) {
+                withText++;
+            }
+        }
+        assertEquals(RESPONDERS, counts.size());
+        for (String packageName : responders.packageNames) {
+            assertEquals(packageName, Integer.valueOf(THREADS * TRIGGERS_PER_THREAD),
+                    counts.get(packageName));
+        }
+        assertEquals(THREADS * TRIGGERS_PER_THREAD / 2 * RESPONDERS, withText);
+        assertNull(shared.getPackage());
+        assertNull(PanicUtils.TRIGGER_INTENT.getPackage());
+    }
+}
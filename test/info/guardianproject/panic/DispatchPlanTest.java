@@ -0,0 +1,337 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Parcelable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class DispatchPlanTest {
+
+    private static final int[] RESPONDER_COUNTS = {1, 10, 100, 1000};
+
+    private final AtomicInteger responderQueries = new AtomicInteger();
+    private final Map<String, Throwable> deliveryErrors = new ConcurrentHashMap<String, Throwable>();
+    private final Queue<String> mismatches = new ConcurrentLinkedQueue<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        PanicTrigger.setMetricsListener(new PanicTrigger.MetricsListener() {
+            @Override
+            public void onPlanResolved(long startNanos, long endNanos, int targetCount) {
+            }
+
+            @Override
+            public void onDelivery(TriggerTarget target, long startNanos, long endNanos,
+                                   Throwable error) {
+                if (error != null) {
+                    deliveryErrors.put(target.getPackageName(), error);
+                }
+            }
+
+            @Override
+            public void onDispatchComplete(long startNanos, long endNanos) {
+            }
+
+            @Override
+            public void onResponderQuery(TriggerTarget.ComponentType componentType,
+                                         long startNanos, long endNanos, int resultCount) {
+                responderQueries.incrementAndGet();
+            }
+
+            @Override
+            public void onSigningCertificateMismatch(String packageName) {
+                mismatches.add(packageName);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FakeResponders.drainBackground();
+        PanicTrigger.setMetricsListener(null);
+    }
+
+    private FakeResponders install(int count) throws Exception {
+        FakeResponders.drainBackground();
+        ResponderRegistry.invalidate();
+        FakeResponders responders = new FakeResponders(RuntimeEnvironment.application, count);
+        PanicTrigger.enableResponders(responders.context, responders.packageNames);
+        responderQueries.set(0);
+        deliveryErrors.clear();
+        return responders;
+    }
+
+    @Test
+    public void deliversExactlyOncePerResponder() throws Exception {
+        for (int count : RESPONDER_COUNTS) {
+            FakeResponders responders = install(count);
+            PanicTrigger.sendTrigger(responders.context);
+
+            assertEquals(count, responders.deliveries.size());
+            Set<String> delivered = new HashSet<String>();
+            for (FakeResponders.Delivery delivery : responders.deliveries) {
+                Intent intent = delivery.intent;
+                assertEquals(Panic.ACTION_TRIGGER, intent.getAction());
+                assertTrue("sent twice to " + intent.getPackage(), delivered.add(intent.getPackage()));
+                assertEquals(responders.getComponentType(intent.getPackage()), delivery.componentType);
+                if (delivery.componentType == TriggerTarget.ComponentType.ACTIVITY) {
+                    assertNull(intent.getParcelableExtra(Panic.EXTRA_SENDER));
+                }
+            }
+            assertEquals(new HashSet<String>(responders.packageNames), delivered);
+        }
+    }
+
+    @Test
+    public void queriesOncePerComponentTypeNoMatterHowManyResponders() throws Exception {
+        for (int count : RESPONDER_COUNTS) {
+            FakeResponders responders = install(count);
+            for (int i = 0; i < 5; i++) {
+                PanicTrigger.sendTrigger(responders.context);
+            }
+            assertEquals(5 * count, responders.deliveries.size());
+            // the index is built once, with one query per kind of component
+            assertEquals(TriggerTarget.ComponentType.values().length, responderQueries.get());
+        }
+    }
+
+    @Test
+    public void healthChecksGrowLinearlyWithResponders() throws Exception {
+        for (int count : RESPONDER_COUNTS) {
+            FakeResponders responders = install(count);
+            PanicTrigger.sendTrigger(responders.context);
+            FakeResponders.drainBackground();
+            int before = responders.queries.get();
+            ResponderHealth.validate(responders.context);
+            FakeResponders.drainBackground();
+            // at most a DEFAULT query and a full query for each responder
+            int queries = responders.queries.get() - before;
+            assertTrue(count + " responders took " + queries + " queries", queries <= 2 * count);
+        }
+    }
+
+    @Test
+    public void keepsDeliveringWhenOneServiceCannotBeStarted() throws Exception {
+        FakeResponders responders = install(10);
+        responders.failingServicePackageName = "responder.2";
+        PanicTrigger.sendTrigger(responders.context);
+
+        assertEquals(9, responders.deliveries.size());
+        for (FakeResponders.Delivery delivery : responders.deliveries) {
+            assertTrue(!"responder.2".equals(delivery.intent.getPackage()));
+        }
+        assertEquals(1, deliveryErrors.size());
+        assertTrue(deliveryErrors.get("responder.2") instanceof IllegalStateException);
+    }
+
+    @Test
+    public void neverStartsActivitiesAfterTheDeadline() throws Exception {
+        final FakeResponders responders = install(10);
+        final AtomicReference<DispatchResult> result = new AtomicReference<DispatchResult>();
+        // the Activities are posted to the main thread, which stays busy past the deadline
+        ShadowLooper.pauseMainLooper();
+        try {
+            Thread sender = new Thread() {
+                @Override
+                public void run() {
+                    result.set(PanicTrigger.sendTrigger(responders.context, 100));
+                }
+            };
+            sender.start();
+            sender.join(10000);
+        } finally {
+            ShadowLooper.unPauseMainLooper();
+        }
+
+        DispatchResult dispatchResult = result.get();
+        assertNotNull(dispatchResult);
+        assertFalse(dispatchResult.isComplete());
+        assertTrue(dispatchResult.getFailed().isEmpty());
+        assertEquals(6, dispatchResult.getDelivered().size());
+        for (TriggerTarget target : dispatchResult.getDelivered()) {
+            assertTrue(target.getComponentType() != TriggerTarget.ComponentType.ACTIVITY);
+        }
+        assertEquals(4, dispatchResult.getTimedOut().size());
+        for (TriggerTarget target : dispatchResult.getTimedOut()) {
+            assertEquals(TriggerTarget.ComponentType.ACTIVITY, target.getComponentType());
+        }
+        // what was reported is what happened, nothing was started late
+        assertEquals(6, responders.deliveries.size());
+        for (FakeResponders.Delivery delivery : responders.deliveries) {
+            assertTrue(delivery.componentType != TriggerTarget.ComponentType.ACTIVITY);
+        }
+    }
+
+    @Test
+    public void reportsEveryTargetDeliveredBeforeTheDeadline() throws Exception {
+        FakeResponders responders = install(10);
+        responders.failingServicePackageName = "responder.2";
+        DispatchResult result = PanicTrigger.sendTrigger(responders.context, 10000);
+
+        assertEquals(9, result.getDelivered().size());
+        assertEquals(1, result.getFailed().size());
+        assertEquals("responder.2", result.getFailed().get(0).getPackageName());
+        assertTrue(result.getTimedOut().isEmpty());
+        assertEquals(9, responders.deliveries.size());
+    }
+
+    @Test
+    public void sendsToUnreachableComponentsLast() throws Exception {
+        FakeResponders responders = install(10);
+        // responder.1 has the first BroadcastReceiver
+        responders.receivers.get(0).activityInfo.exported = false;
+        ResponderHealth.validate(responders.context);
+        FakeResponders.drainBackground();
+        assertEquals(ResponderHealth.Status.UNREACHABLE, ResponderHealth.getStatus("responder.1",
+                TriggerTarget.ComponentType.BROADCAST_RECEIVER));
+
+        try {
+            PanicTrigger.sendTrigger(responders.context);
+            assertEquals(10, responders.deliveries.size());
+            FakeResponders.Delivery last = null;
+            for (FakeResponders.Delivery delivery : responders.deliveries) {
+                last = delivery;
+            }
+            assertEquals("responder.1", last.intent.getPackage());
+        } finally {
+            responders.receivers.get(0).activityInfo.exported = true;
+            ResponderHealth.validate(responders.context);
+            FakeResponders.drainBackground();
+        }
+    }
+
+    @Test
+    public void neverModifiesTheCallersIntent() throws Exception {
+        FakeResponders responders = install(10);
+        Intent intent = new Intent(Panic.ACTION_TRIGGER);
+        PanicTrigger.sendTrigger(responders.context, intent);
+
+        assertEquals(10, responders.deliveries.size());
+        assertNull(intent.getPackage());
+        assertNull(intent.getComponent());
+        assertNull(intent.getParcelableExtra(Panic.EXTRA_SENDER));
+    }
+
+    @Test
+    public void neverSendsTheSameCredentialTwice() throws Exception {
+        FakeResponders responders = install(10);
+        PanicTrigger.arm(responders.context);
+        // hold up the background rebuild, so the second firing happens before it
+        final CountDownLatch rebuild = new CountDownLatch(1);
+        PanicUtils.BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            assertTrue(PanicTrigger.fire());
+            assertTrue(PanicTrigger.fire());
+        } finally {
+            rebuild.countDown();
+            PanicTrigger.disarm();
+        }
+
+        assertEquals(20, responders.deliveries.size());
+        Set<Parcelable> credentials = Collections.newSetFromMap(new IdentityHashMap<Parcelable, Boolean>());
+        for (FakeResponders.Delivery delivery : responders.deliveries) {
+            Parcelable credential = delivery.intent.getParcelableExtra(Panic.EXTRA_SENDER);
+            if (delivery.componentType == TriggerTarget.ComponentType.ACTIVITY) {
+                assertNull(credential);
+            } else {
+                assertNotNull(credential);
+                assertTrue("credential sent twice to " + delivery.intent.getPackage(),
+                        credentials.add(credential));
+            }
+        }
+    }
+
+    @Test
+    public void sendsSpareCredentialsWithoutArming() throws Exception {
+        FakeResponders responders = install(10);
+        ResponderHealth.validate(responders.context);
+        // once for the check, once for the spares it queued
+        FakeResponders.drainBackground();
+        FakeResponders.drainBackground();
+
+        Set<Parcelable> credentials = Collections.newSetFromMap(new IdentityHashMap<Parcelable, Boolean>());
+        for (int i = 0; i < 3; i++) {
+            responders.deliveries.clear();
+            PanicTrigger.sendTrigger(responders.context);
+            // the next spares are issued in the background
+            FakeResponders.drainBackground();
+
+            assertEquals(10, responders.deliveries.size());
+            for (FakeResponders.Delivery delivery : responders.deliveries) {
+                Parcelable credential = delivery.intent.getParcelableExtra(Panic.EXTRA_SENDER);
+                if (delivery.componentType == TriggerTarget.ComponentType.ACTIVITY) {
+                    assertNull(credential);
+                } else {
+                    assertNotNull(credential);
+                    assertTrue("credential sent twice to " + delivery.intent.getPackage(),
+                            credentials.add(credential));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reportsRespondersWhoseSigningKeyChanged() throws Exception {
+        FakeResponders responders = install(10);
+        PanicTrigger.addConnectedResponder(responders.context, "responder.1");
+        try {
+            // as if it was reinstalled, signed by someone else
+            responders.context.getSharedPreferences(PanicTrigger.SIGNING_CERTIFICATES_SHARED_PREFS,
+                    Context.MODE_PRIVATE).edit().putString("responder.1", "00").commit();
+            ResponderHealth.validate(responders.context);
+            FakeResponders.drainBackground();
+            assertTrue(ResponderHealth.hasChangedSigningCertificate("responder.1"));
+            assertTrue(mismatches.contains("responder.1"));
+
+            mismatches.clear();
+            PanicTrigger.sendTrigger(responders.context);
+            assertEquals(9, responders.deliveries.size());
+            assertEquals("responder.1", mismatches.poll());
+            assertTrue(mismatches.isEmpty());
+
+            assertFalse(PanicTrigger.enableResponder(responders.context, "responder.1"));
+            assertEquals("responder.1", mismatches.poll());
+        } finally {
+            // forget the pin, so the responder is delivered to in the other tests
+            PanicTrigger.removeConnectedResponder(responders.context, "responder.1");
+            FakeResponders.drainBackground();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package info.guardianproject.panic;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.content.pm.Signature;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A fake set of installed panic responders.  The {@link PackageManager} is a
+ * Mockito mock that answers the queries for responders and counts them, and
+ * that signs each responder with a key of its own.  The {@link Context}
+ * records every trigger that is delivered instead of sending it.  Responder {@code i} is named {@code responder.i}, and has an
+ * {@code Activity}, a {@code BroadcastReceiver} or a {@code Service},
+ * taking turns in that order.
+ */
+final class FakeResponders {
+
+    /**
+     * A single trigger that was delivered.
+     */
+    static final class Delivery {
+        final TriggerTarget.ComponentType componentType;
+        final Intent intent;
+
+        Delivery(TriggerTarget.ComponentType componentType, Intent intent) {
+            this.componentType = componentType;
+            this.intent = intent;
+        }
+    }
+
+    final List<String> packageNames = new ArrayList<String>();
+    final List<ResolveInfo> activities = new ArrayList<ResolveInfo>();
+    final List<ResolveInfo> receivers = new ArrayList<ResolveInfo>();
+    final List<ResolveInfo> services = new ArrayList<ResolveInfo>();
+    final AtomicInteger queries = new AtomicInteger();
+    final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<Delivery>();
+    final PackageManager packageManager;
+    final FakeContext context;
+
+    /** the package whose {@code Service} cannot be started, like on android-26+ */
+    volatile String failingServicePackageName;
+
+    FakeResponders(Context base, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            String packageName = "responder." + i;
+            packageNames.add(packageName);
+            switch (i % 3) {
+                case 0:
+                    activities.add(newResolveInfo(packageName, false));
+                    break;
+                case 1:
+                    receivers.add(newResolveInfo(packageName, false));
+                    break;
+                default:
+                    services.add(newResolveInfo(packageName, true));
+                    break;
+            }
+        }
+        packageManager = mock(PackageManager.class);
+        when(packageManager.queryIntentActivities(any(Intent.class), anyInt()))
+                .thenAnswer(new Query(activities));
+        when(packageManager.queryBroadcastReceivers(any(Intent.class), anyInt()))
+                .thenAnswer(new Query(receivers));
+        when(packageManager.queryIntentServices(any(Intent.class), anyInt()))
+                .thenAnswer(new Query(services));
+        when(packageManager.getPackageInfo(anyString(), anyInt()))
+                .thenAnswer(new Signatures());
+        context = new FakeContext(base);
+    }
+
+    /**
+     * Wait for everything queued on the library's background thread, so
+     * that work from an earlier test cannot change the state of the next.
+     */
+    static void drainBackground() throws Exception {
+        PanicUtils.BACKGROUND_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the type of component that {@code packageName} has
+     */
+    TriggerTarget.ComponentType getComponentType(String packageName) {
+        int i = Integer.parseInt(packageName.substring(packageName.indexOf('.') + 1));
+        return TriggerTarget.ComponentType.values()[i % 3];
+    }
+
+    private static ResolveInfo newResolveInfo(String packageName, boolean service) {
+        ComponentInfo info = service ? new ServiceInfo() : new ActivityInfo();
+        info.packageName = packageName;
+        info.name = packageName + ".PanicResponder";
+        info.exported = true;
+        info.enabled = true;
+        info.applicationInfo = new ApplicationInfo();
+        info.applicationInfo.packageName = packageName;
+        ResolveInfo resolveInfo = new ResolveInfo();
+        if (service) {
+            resolveInfo.serviceInfo = (ServiceInfo) info;
+        } else {
+            resolveInfo.activityInfo = (ActivityInfo) info;
+        }
+        return resolveInfo;
+    }
+
+    /**
+     * Answers a query like {@link PackageManager} does: only trigger
+     * {@link Intent}s match, and only in the {@link Intent#getPackage()} if set.
+     */
+    private final class Query implements Answer<List<ResolveInfo>> {
+        private final List<ResolveInfo> installed;
+
+        Query(List<ResolveInfo> installed) {
+            this.installed = installed;
+        }
+
+        @Override
+        public List<ResolveInfo> answer(InvocationOnMock invocation) {
+            queries.incrementAndGet();
+            Intent intent = (Intent) invocation.getArguments()[0];
+            List<ResolveInfo> result = new ArrayList<ResolveInfo>();
+            if (!Panic.ACTION_TRIGGER.equals(intent.getAction())) {
+                return result;
+            }
+            for (ResolveInfo resolveInfo : installed) {
+                String packageName = resolveInfo.activityInfo != null
+                        ? resolveInfo.activityInfo.packageName : resolveInfo.serviceInfo.packageName;
+                if (intent.getPackage() == null || intent.getPackage().equals(packageName)) {
+                    result.add(resolveInfo);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Answers {@link PackageManager#getPackageInfo(String, int)} for the
+     * responders, each signed with a key made from its package name.
+     */
+    private final class Signatures implements Answer<PackageInfo> {
+
+        @Override
+        public PackageInfo answer(InvocationOnMock invocation) throws Throwable {
+            String packageName = (String) invocation.getArguments()[0];
+            if (!packageNames.contains(packageName)) {
+                throw new PackageManager.NameNotFoundException(packageName);
+            }
+            PackageInfo packageInfo = new PackageInfo();
+            packageInfo.packageName = packageName;
+            packageInfo.signatures = new Signature[]{new Signature(packageName.getBytes("UTF-8"))};
+            return packageInfo;
+        }
+    }
+
+    final class FakeContext extends ContextWrapper {
+
+        FakeContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public PackageManager getPackageManager() {
+            return packageManager;
+        }
+
+        @Override
+        public void startActivity(Intent intent) {
+            deliveries.add(new Delivery(TriggerTarget.ComponentType.ACTIVITY, intent));
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent) {
+            deliveries.add(new Delivery(TriggerTarget.ComponentType.BROADCAST_RECEIVER, intent));
+        }
+
+        @Override
+        public ComponentName startService(Intent intent) {
+            if (intent.getPackage().equals(failingServicePackageName)) {
+                throw new IllegalStateException("Not allowed to start service " + intent);
+            }
+            deliveries.add(new Delivery(TriggerTarget.ComponentType.SERVICE, intent));
+            return new ComponentName(intent.getPackage(), intent.getPackage() + ".PanicResponder");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package info.guardianproject.panic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reloads a {@link MappedStateStore} file that ends in a record that was
+ * only partly written, like when the app is killed in the middle of an
+ * update.
+ */
+public class MappedStateStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("MappedStateStoreTest", "");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void partialRecordIsCutOffWhenLoaded() throws IOException {
+        MappedStateStore store = new MappedStateStore(file);
+        store.load();
+        assertTrue(store.update(Collections.singleton("info.guardianproject.ripple"),
+                ResponderStateStore.FLAG_CONNECTED, true));
+        long complete = file.length();
+
+        /*
+         * A record for a 20 byte name that was cut off after 8 bytes.  Its
+         * last 7 bytes look like a whole record connecting "evil", so they
+         * must not be left behind after a shorter record is written over it.
+         */
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(complete);
+            raf.write(new byte[]{ResponderStateStore.FLAG_CONNECTED, 0, 20, 0,
+                    ResponderStateStore.FLAG_CONNECTED, 0, 4, 'e', 'v', 'i', 'l'});
+        } finally {
+            raf.close();
+        }
+
+        store = new MappedStateStore(file);
+        store.load();
+        assertEquals(complete, file.length());
+        assertEquals(Collections.singleton("info.guardianproject.ripple"),
+                store.getPackageNames(ResponderStateStore.FLAG_CONNECTED));
+        assertTrue(store.update(Collections.singleton("b"), ResponderStateStore.FLAG_ENABLED, true));
+
+        store = new MappedStateStore(file);
+        store.load();
+        assertEquals(Collections.singleton("info.guardianproject.ripple"),
+                store.getPackageNames(ResponderStateStore.FLAG_CONNECTED));
+        assertEquals(Collections.singleton("b"), store.getPackageNames(ResponderStateStore.FLAG_ENABLED));
+        Set<String> all = new HashSet<String>(store.getPackageNames(
+                ResponderStateStore.FLAG_CONNECTED | ResponderStateStore.FLAG_ENABLED));
+        assertEquals(2, all.size());
+    }
+}
@@ -0,0 +1,75 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the window in which {@link PanicResponder#shouldRespondToTrigger(Context, long)}
+ * ignores repeated triggers.  {@link SystemClock#sleep(long)} only moves
+ * Robolectric's clock forward, so nothing actually waits.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class PanicResponderTest {
+
+    private static final long WINDOW_MILLIS = 10000;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        PanicResponder.resetTriggerWindow(context);
+        // a saved time of 0 means there was no trigger, which a real clock is long past
+        SystemClock.sleep(1000);
+    }
+
+    @Test
+    public void repeatInsideTheWindowIsIgnored() {
+        assertTrue(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+        SystemClock.sleep(1000);
+        assertFalse(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+
+        // the saved time still counts once the process is restarted
+        PanicResponder.reloadTriggerTime();
+        assertFalse(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+    }
+
+    @Test
+    public void triggerAfterTheWindowIsAccepted() {
+        assertTrue(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+        SystemClock.sleep(WINDOW_MILLIS);
+        assertTrue(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+        // which starts a new window
+        assertFalse(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+    }
+
+    @Test
+    public void savedTimeFromAnotherBootIsIgnored() {
+        assertTrue(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+        SharedPreferences prefs = PanicResponder.getResponderPrefs(context);
+        long bootTime = prefs.getLong(PanicResponder.PREF_LAST_TRIGGER_BOOT_TIME, 0);
+        assertTrue(bootTime != 0);
+
+        // the wall clock was adjusted a little since, so it is the same boot
+        prefs.edit().putLong(PanicResponder.PREF_LAST_TRIGGER_BOOT_TIME, bootTime + 4000).commit();
+        PanicResponder.reloadTriggerTime();
+        assertFalse(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+
+        // saved before a reboot, when elapsedRealtime() was counting from another start
+        prefs.edit().putLong(PanicResponder.PREF_LAST_TRIGGER_BOOT_TIME, bootTime - 60000).commit();
+        PanicResponder.reloadTriggerTime();
+        assertTrue(PanicResponder.shouldRespondToTrigger(context, WINDOW_MILLIS));
+    }
+}
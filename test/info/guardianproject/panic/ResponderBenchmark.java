@@ -0,0 +1,183 @@
+package info.guardianproject.panic;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures responder discovery and dispatch with 1, 10, 100 and 1000
+ * installed responders, reporting throughput, bytes allocated per operation
+ * and {@link android.content.pm.PackageManager} queries per operation.
+ * Half of the responders are connected, and all are enabled.  The query
+ * counts are checked, so a change that makes the index stop being reused
+ * fails here.  Run with {@code ./gradlew test --tests '*Benchmark'} and read
+ * the results from the test output.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ResponderBenchmark {
+
+    private static final int[] RESPONDER_COUNTS = {1, 10, 100, 1000};
+    private static final int WARMUP_OPERATIONS = 20;
+    /** spread over the responders, so bigger sets run fewer operations */
+    private static final int WORK_PER_RUN = 20000;
+
+    private interface Operation {
+        void run(Context context);
+    }
+
+    /** counts only the queries made to build the {@link ResponderRegistry} index */
+    private final AtomicInteger indexQueries = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        PanicTrigger.setMetricsListener(new PanicTrigger.MetricsListener() {
+            @Override
+            public void onPlanResolved(long startNanos, long endNanos, int targetCount) {
+            }
+
+            @Override
+            public void onDelivery(TriggerTarget target, long startNanos, long endNanos,
+                                   Throwable error) {
+            }
+
+            @Override
+            public void onDispatchComplete(long startNanos, long endNanos) {
+            }
+
+            @Override
+            public void onResponderQuery(TriggerTarget.ComponentType componentType,
+                                         long startNanos, long endNanos, int resultCount) {
+                indexQueries.incrementAndGet();
+            }
+
+            @Override
+            public void onSigningCertificateMismatch(String packageName) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FakeResponders.drainBackground();
+        PanicTrigger.setMetricsListener(null);
+    }
+
+    @Test
+    public void getAllResponders() throws Exception {
+        run("getAllResponders", new Operation() {
+            @Override
+            public void run(Context context) {
+                PanicTrigger.getAllResponders(context);
+            }
+        });
+    }
+
+    @Test
+    public void getEnabledResponders() throws Exception {
+        run("getEnabledResponders", new Operation() {
+            @Override
+            public void run(Context context) {
+                PanicTrigger.getEnabledResponders(context);
+            }
+        });
+    }
+
+    @Test
+    public void getConnectedResponders() throws Exception {
+        run("getConnectedResponders", new Operation() {
+            @Override
+            public void run(Context context) {
+                PanicTrigger.getConnectedResponders(context);
+            }
+        });
+    }
+
+    @Test
+    public void sendTrigger() throws Exception {
+        run("sendTrigger", new Operation() {
+            @Override
+            public void run(Context context) {
+                PanicTrigger.sendTrigger(context);
+            }
+        });
+    }
+
+    private void run(String name, Operation operation) throws Exception {
+        for (int count : RESPONDER_COUNTS) {
+            FakeResponders.drainBackground();
+            ResponderRegistry.invalidate();
+            FakeResponders responders = new FakeResponders(RuntimeEnvironment.application, count);
+            PanicTrigger.enableResponders(responders.context, responders.packageNames);
+            List<String> connected = new ArrayList<String>();
+            for (int i = 0; i < count; i += 2) {
+                connected.add(responders.packageNames.get(i));
+            }
+            PanicTrigger.addConnectedResponders(responders.context, connected);
+
+            // the first use builds the index, which is all the querying there should be
+            indexQueries.set(0);
+            operation.run(responders.context);
+            int coldQueries = indexQueries.get();
+            assertEquals(name + " with " + count + " responders",
+                    TriggerTarget.ComponentType.values().length, coldQueries);
+
+            for (int i = 0; i < WARMUP_OPERATIONS; i++) {
+                operation.run(responders.context);
+                responders.deliveries.clear();
+            }
+            FakeResponders.drainBackground();
+
+            int operations = Math.max(WARMUP_OPERATIONS, WORK_PER_RUN / count);
+            int before = responders.queries.get();
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                operation.run(responders.context);
+                responders.deliveries.clear();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = getAllocatedBytes() - allocatedBefore;
+            int warmQueries = responders.queries.get() - before;
+
+            System.out.println(String.format("%-24s %5d responders: %10.1f ops/s %12s bytes/op"
+                            + " %6.2f queries/op (%d when cold)",
+                    name, count, operations * 1e9 / elapsed,
+                    allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / operations),
+                    (double) warmQueries / operations, coldQueries));
+            assertEquals(name + " with " + count + " responders", 0, warmQueries);
+        }
+    }
+
+    /**
+     * {@code com.sun.management.ThreadMXBean} is not on the Android
+     * classpath, so it is found at runtime from the JVM running the tests.
+     *
+     * @return the bytes allocated by this thread so far, or -1 if the JVM
+     * cannot tell
+     */
+    private static long getAllocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
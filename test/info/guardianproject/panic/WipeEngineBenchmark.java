@@ -0,0 +1,95 @@
+package info.guardianproject.panic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the MB/s of deleting with the secure overwrite against plain
+ * deleting, on a tree of large files.  The total size defaults to 256 MB,
+ * and can be set with {@code -Dpanic.wipe.benchmark.mb=}.  This runs on the
+ * plain JVM, so it measures whatever disk the temp dir is on.
+ */
+public class WipeEngineBenchmark {
+
+    private static final int FILE_COUNT = 8;
+    private static final int WRITE_CHUNK = 1024 * 1024;
+
+    private File root;
+    private long totalBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        totalBytes = Long.getLong("panic.wipe.benchmark.mb", 256) * 1024 * 1024;
+        root = File.createTempFile("WipeEngineBenchmark", "");
+        assertTrue(root.delete());
+    }
+
+    @After
+    public void tearDown() {
+        // only reached with anything left if the wipe failed
+        new WipeEngine(1, Collections.<File>emptyList(), null).wipe(Collections.singletonList(root));
+    }
+
+    @Test
+    public void compareOverwriteWithPlainDelete() throws IOException {
+        createTree();
+        // SystemClock, used for WipeResult.getElapsedMillis(), is not on the plain JVM
+        long start = System.nanoTime();
+        WipeResult plain = new WipeEngine(Runtime.getRuntime().availableProcessors(),
+                Collections.<File>emptyList(), null).wipe(Collections.singletonList(root));
+        long plainNanos = System.nanoTime() - start;
+        assertFalse(root.exists());
+        assertEquals(totalBytes, plain.getBytesDeleted());
+        assertEquals(0, plain.getBytesOverwritten());
+
+        createTree();
+        start = System.nanoTime();
+        WipeResult overwritten = new WipeEngine(Runtime.getRuntime().availableProcessors(),
+                Collections.singletonList(root), null).wipe(Collections.singletonList(root));
+        long overwriteNanos = System.nanoTime() - start;
+        assertFalse(root.exists());
+        assertTrue(overwritten.getFailures().isEmpty());
+        assertEquals(totalBytes, overwritten.getBytesDeleted());
+        assertEquals(totalBytes, overwritten.getBytesOverwritten());
+
+        System.out.println(String.format("%d MB in %d files, plain delete: %.1f MB/s,"
+                        + " secure overwrite: %.1f MB/s",
+                totalBytes / 1024 / 1024, FILE_COUNT,
+                getMegabytesPerSecond(plainNanos), getMegabytesPerSecond(overwriteNanos)));
+    }
+
+    private double getMegabytesPerSecond(long nanos) {
+        return totalBytes / 1024.0 / 1024.0 / (nanos / 1e9);
+    }
+
+    private void createTree() throws IOException {
+        byte[] chunk = new byte[WRITE_CHUNK];
+        new Random(0).nextBytes(chunk);
+        long fileSize = totalBytes / FILE_COUNT;
+        for (int i = 0; i < FILE_COUNT; i++) {
+            File dir = new File(root, "dir" + (i % 3));
+            assertTrue(dir.isDirectory() || dir.mkdirs());
+            FileOutputStream out = new FileOutputStream(new File(dir, "file" + i));
+            try {
+                for (long written = 0; written < fileSize; written += WRITE_CHUNK) {
+                    out.write(chunk, 0, (int) Math.min(WRITE_CHUNK, fileSize - written));
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+        totalBytes = fileSize * FILE_COUNT;
+    }
+}
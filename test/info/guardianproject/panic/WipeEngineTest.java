@@ -0,0 +1,179 @@
+package info.guardianproject.panic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wipes small trees on the plain JVM, with more threads than directories so
+ * that the workers have to wait for each other.  The symbolic links are made
+ * with {@code java.nio.file}, which the tests can use even though the
+ * library cannot.
+ */
+public class WipeEngineTest {
+
+    private static final int THREADS = 4;
+
+    private File root;
+    private File outside;
+
+    @Before
+    public void setUp() throws IOException {
+        root = createTempDir("WipeEngineTest");
+        outside = createTempDir("WipeEngineTest-outside");
+    }
+
+    @After
+    public void tearDown() {
+        new WipeEngine(1, Collections.<File>emptyList(), null).wipe(Arrays.asList(root, outside));
+    }
+
+    @Test
+    public void nestedRootsAreOnlyWipedOnce() throws IOException {
+        File nested = new File(root, "a/b");
+        int files = createTree(root, 3);
+
+        WipeResult result = new WipeEngine(THREADS, Collections.<File>emptyList(), null)
+                .wipe(Arrays.asList(nested, root, new File(nested, "file0"),
+                        new File(root, "a/../a")));
+        assertFalse(root.exists());
+        assertTrue(result.getFailures().isEmpty());
+        assertFalse(result.isTimedOut());
+        // everything is counted once, plus the root itself
+        assertEquals(files + 1, result.getFilesDeleted());
+    }
+
+    @Test
+    public void symlinkedRootIsNotResolved() throws IOException {
+        File link = new File(root, "link");
+        Files.createSymbolicLink(link.toPath(), outside.toPath());
+
+        List<File> roots = WipeEngine.removeNestedRoots(
+                Arrays.asList(link, new File(outside, "dir")));
+        assertEquals(2, roots.size());
+        assertTrue(roots.contains(new File(root.getCanonicalFile(), "link")));
+        assertTrue(WipeEngine.isSymlink(link));
+        assertFalse(WipeEngine.isSymlink(outside));
+    }
+
+    @Test
+    public void symlinkedRootIsOnlyUnlinked() throws IOException {
+        int files = createTree(outside, 2);
+        File link = new File(root, "link");
+        Files.createSymbolicLink(link.toPath(), outside.toPath());
+
+        WipeResult result = new WipeEngine(THREADS, Collections.singletonList(link), null)
+                .wipe(Collections.singletonList(link));
+        assertFalse(link.exists() || Files.isSymbolicLink(link.toPath()));
+        assertEquals(1, result.getFilesDeleted());
+        assertEquals(0, result.getBytesOverwritten());
+        assertEquals(files, countFiles(outside));
+    }
+
+    @Test
+    public void symlinksInsideTheTreeAreNotFollowed() throws IOException {
+        int outsideFiles = createTree(outside, 1);
+        createTree(root, 2);
+        Files.createSymbolicLink(new File(root, "a/dir").toPath(), outside.toPath());
+        Files.createSymbolicLink(new File(root, "a/file").toPath(),
+                new File(outside, "file0").toPath());
+
+        WipeResult result = new WipeEngine(THREADS, Collections.singletonList(root), null)
+                .wipe(Collections.singletonList(root));
+        assertFalse(root.exists());
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(outsideFiles, countFiles(outside));
+        assertTrue(new File(outside, "file0").length() > 0);
+    }
+
+    @Test
+    public void nothingIsDeletedAfterTheDeadline() throws IOException {
+        int files = createTree(root, 3);
+
+        // the deadline has already passed, on the JVM and on Android
+        WipeResult result = new WipeEngine(THREADS, Collections.<File>emptyList(), null)
+                .wipe(Collections.singletonList(root), 0);
+        assertTrue(result.isTimedOut());
+        assertEquals(0, result.getFilesDeleted());
+        assertEquals(files, countFiles(root));
+    }
+
+    @Test
+    public void engineCanWipeAgain() throws IOException {
+        WipeEngine engine = new WipeEngine(THREADS, Collections.<File>emptyList(), null);
+        int files = createTree(root, 3);
+        assertTrue(engine.wipe(Collections.singletonList(root), 0).isTimedOut());
+
+        // the directories queued by the timed out call are not left behind
+        WipeResult result = engine.wipe(Collections.singletonList(root));
+        assertFalse(result.isTimedOut());
+        assertFalse(root.exists());
+        assertEquals(files + 1, result.getFilesDeleted());
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(root.mkdir());
+            files = createTree(root, 2);
+            result = engine.wipe(Collections.singletonList(root));
+            assertFalse(root.exists());
+            assertEquals(files + 1, result.getFilesDeleted());
+        }
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    /**
+     * Create {@code depth} nested directories {@code a/b/c...} in {@code dir},
+     * each with a few files and an empty directory.
+     *
+     * @return the number of files and directories created
+     */
+    private static int createTree(File dir, int depth) throws IOException {
+        int count = 0;
+        for (int level = 0; level < depth; level++) {
+            for (int i = 0; i < 3; i++) {
+                FileOutputStream out = new FileOutputStream(new File(dir, "file" + i));
+                try {
+                    out.write(new byte[]{1, 2, 3});
+                } finally {
+                    out.close();
+                }
+                count++;
+            }
+            assertTrue(new File(dir, "empty").mkdir());
+            count++;
+            if (level + 1 < depth) {
+                dir = new File(dir, String.valueOf((char) ('a' + level)));
+                assertTrue(dir.mkdir());
+            }
+        }
+        return count + depth - 1;
+    }
+
+    private static int countFiles(File dir) {
+        int count = 0;
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                count += 1 + (Files.isSymbolicLink(child.toPath()) ? 0 : countFiles(child));
+            }
+        }
+        return count;
+    }
+}